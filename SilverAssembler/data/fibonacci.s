@@ -3,6 +3,7 @@ main {
   JAL fibonacci
   MV $v0 $a0
   JAL printi
+  LI 0 $a0
   SYS OS_EXIT
 }
 fibonacci {
@@ -21,12 +22,12 @@ fibonacci {
   RET
 }
 printi {
+  PSH $ra
   DVI $a0 10
   ADI $hi 48 $a0
   SYS OS_PRINT
-  BIZ $lo 5
+  BIZ $lo 3
   MV $lo $a0
-  PSH $ra
   JAL printi
   POP $ra
   RET
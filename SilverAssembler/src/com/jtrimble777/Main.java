@@ -1,14 +1,24 @@
 package com.jtrimble777;
 
 import com.jtrimble777.assembler.Assembler;
+import com.jtrimble777.assembler.Linker;
+import com.jtrimble777.assembler.SegmentCache;
+import com.jtrimble777.common.SymbolTable;
+import com.jtrimble777.executor.ProgramLoader;
+import com.jtrimble777.executor.SALMachine;
+import com.jtrimble777.executor.SamplingProfiler;
+import com.jtrimble777.executor.memory.GuestMemory;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Main {
 
     public static void main(String[] args) throws IOException {
         if (args.length < 1) {
-            System.out.println("Must provide a command, one of [assemble | execute | hex | unhex]");
+            System.out.println("Must provide a command, one of [assemble | link | execute | hex | unhex]");
             return;
         }
 
@@ -27,35 +37,219 @@ public class Main {
                     sourceFile += ".s";
                 }
                 String destFile = sourceFile.replaceAll("\\.s", ".o");
-                if (args.length > 2) {
-                    switch (args[2]) {
+                boolean incremental = false;
+                boolean trap = false;
+                boolean table = false;
+                boolean verbose = false;
+                List<String> libraries = new ArrayList<>();
+                for (int ai = 2; ai < args.length; ai++) {
+                    switch (args[ai]) {
                         case "-o":
-                            if (args.length < 4) {
+                            if (args.length < ai + 2) {
                                 System.out.println("The -o flag for assemble requires "
                                     + "positional argument <out_filename>");
                                 return;
                             }
-                            destFile = args[3];
+                            destFile = args[++ai];
                             if (!destFile.contains(".")) {
                                 destFile += ".o";
                             }
                             break;
+                        case "-incremental":
+                            incremental = true;
+                            break;
+                        case "-trap":
+                            trap = true;
+                            break;
+                        case "-v":
+                            verbose = true;
+                            break;
+                        case "-tbl":
+                            table = true;
+                            break;
+                        case "-l":
+                            if (args.length < ai + 2) {
+                                System.out.println("The -l flag for assemble requires "
+                                    + "positional argument <object_filename>");
+                                return;
+                            }
+                            libraries.add(args[++ai]);
+                            break;
+                    }
+                }
+                if (table && !libraries.isEmpty()) {
+                    System.out.println("The -tbl and -l flags for assemble cannot be combined");
+                    return;
+                }
+
+                assemble(sourceFile, destFile, incremental, trap, table, libraries, verbose);
+                break;
+            case "link":
+                List<String> objects = new ArrayList<>();
+                String linkedFile = "a.o";
+                boolean verboseLink = false;
+                for (int ai = 1; ai < args.length; ai++) {
+                    if (args[ai].equals("-v")) {
+                        verboseLink = true;
+                    } else if (args[ai].equals("-o")) {
+                        if (args.length < ai + 2) {
+                            System.out.println("The -o flag for link requires "
+                                + "positional argument <out_filename>");
+                            return;
+                        }
+                        linkedFile = args[++ai];
+                    } else {
+                        objects.add(args[ai]);
                     }
                 }
+                if (objects.isEmpty()) {
+                    System.out.println("The link command requires at least one positional "
+                        + "argument <object_filename>");
+                    return;
+                }
+
+                link(objects, linkedFile, verboseLink);
+                break;
+            case "execute":
+                if (args.length < 2) {
+                    System.out.println("The execute command requires positional argument "
+                        + "<filename>");
+                    return;
+                }
+                String programFile = args[1];
+                if (!programFile.contains(".")) {
+                    programFile += ".o";
+                }
 
-                assemble(sourceFile, destFile);
+                boolean compile = false;
+                boolean count = false;
+                // Instructions between samples, or milliseconds with -profile-timer; 0 is off
+                long profile = 0;
+                boolean timed = false;
+                boolean sparse = false;
+                boolean hostSyscalls = false;
+                for (int ai = 2; ai < args.length; ai++) {
+                    switch (args[ai]) {
+                        case "-jit":
+                            compile = true;
+                            break;
+                        case "-counters":
+                            count = true;
+                            break;
+                        case "-profile":
+                            profile = SamplingProfiler.DEFAULT_INTERVAL;
+                            break;
+                        case "-profile-timer":
+                            profile = 1;
+                            timed = true;
+                            break;
+                        case "-sparse":
+                            sparse = true;
+                            break;
+                        case "-hle":
+                            hostSyscalls = true;
+                            break;
+                    }
+                }
+                execute(programFile, compile, count, profile, timed, sparse,
+                    hostSyscalls);
                 break;
 
         }
     }
 
-    private static void assemble(String sfnm, String dfnm) throws IOException {
+    // With incremental set, encoded functions are cached next to the output in <out>.cache. With
+    // trap set, SYS is lowered to the single word TRAP instruction. With table set, the output is
+    // a relocatable object for the link command; given libraries, the source is linked with those
+    // objects into the executable. Progress and every encoded word are printed only with verbose
+    private static void assemble(String sfnm, String dfnm, boolean incremental, boolean trap,
+        boolean table, List<String> libraries, boolean verbose) throws IOException {
         File sourceFile = new File(sfnm);
         File outFile = new File(dfnm);
 
-        Assembler assembler = new Assembler(sourceFile, true);
+        Assembler assembler = new Assembler(sourceFile, verbose);
+        assembler.setTrapSyscalls(trap);
+        assembler.setRelocatable(table || !libraries.isEmpty());
+        SegmentCache cache = null;
+        if (incremental) {
+            cache = SegmentCache.open(new File(dfnm + ".cache"));
+            assembler.setCache(cache);
+        }
         assembler.assemble();
 
-        assembler.writeToFile(outFile);
+        if (table) {
+            assembler.writeObject(outFile);
+        } else if (!libraries.isEmpty()) {
+            Linker linker = new Linker(verbose);
+            linker.add(sfnm, assembler.toObject());
+            for (String library : libraries) {
+                linker.add(new File(library));
+            }
+            linker.link();
+            linker.writeToFile(outFile);
+            linker.getSymbols().write(new File(dfnm + ".sym"));
+        } else {
+            assembler.writeToFile(outFile);
+            assembler.getSymbols().write(new File(dfnm + ".sym"));
+        }
+        if (cache != null) {
+            cache.save();
+            System.out.println("Incremental: " + cache.getHits() + " functions reused, "
+                + cache.getPatches() + " patched, " + cache.getMisses() + " encoded");
+        }
+    }
+
+    // Links relocatable objects written by assemble -tbl into one executable, with its symbols in
+    // <out>.sym
+    private static void link(List<String> objects, String dfnm, boolean verbose)
+        throws IOException {
+        Linker linker = new Linker(verbose);
+        for (String object : objects) {
+            linker.add(new File(object));
+        }
+        linker.link();
+        linker.writeToFile(new File(dfnm));
+        linker.getSymbols().write(new File(dfnm + ".sym"));
+    }
+
+    // With count set, the execution counters are printed to stderr once the program halts. With
+    // profile set, the collapsed stacks are written to <program>.collapsed, named through the
+    // symbols in <program>.sym when the assembler left one. With sparse set, the program gets
+    // the whole 32 bit address space, allocated as it is touched. With hostSyscalls set, SYS runs
+    // PRINT, READ and EXIT as host code. The code a program passes to a host EXIT, through SYS or
+    // TRAP, becomes the process's
+    private static void execute(String pfnm, boolean compile, boolean count, long profile,
+        boolean timed, boolean sparse, boolean hostSyscalls) throws IOException {
+        SALMachine machine = sparse ? new SALMachine(GuestMemory.sparse()) : new SALMachine();
+        if (compile) {
+            machine.enableCompilation();
+        }
+        if (count) {
+            machine.enableCounters().register(pfnm);
+        }
+        if (hostSyscalls) {
+            machine.enableHostSyscalls();
+        }
+        machine.load(ProgramLoader.loadProgram(new File(pfnm)));
+        if (profile > 0) {
+            SamplingProfiler profiler = new SamplingProfiler(machine,
+                SymbolTable.forExecutable(new File(pfnm)));
+            if (timed) {
+                profiler.runTimed(profile);
+            } else {
+                profiler.runSampled(profile);
+            }
+            profiler.writeCollapsed(Path.of(pfnm + ".collapsed"));
+            System.err.println("Profile: " + profiler.getSamples() + " samples written to "
+                + pfnm + ".collapsed");
+        } else {
+            machine.run();
+        }
+        if (count) {
+            System.err.print(machine.getCounters().getReport());
+        }
+        if (machine.getExitCode() != 0) {
+            System.exit(machine.getExitCode());
+        }
     }
 }
@@ -1,122 +1,180 @@
 package com.jtrimble777.assembler;
 
 import com.jtrimble777.common.InstructionSet;
+import com.jtrimble777.common.MemoryStructure;
 import com.jtrimble777.common.Register;
 import com.jtrimble777.common.Syscall;
+import com.jtrimble777.common.SymbolTable;
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
-
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+The source is read once, line by line. Function segments are tokenized straight into a compact
+per-segment representation: one InstructionSet per line plus flat int arrays of operands. An
+operand naming a label is recorded as a fixup against the symbol, and all fixups are patched
+once every segment has been laid out (main first, then the other functions in source order).
+ */
 public class Assembler {
 
   private Map<String, SegmentData> segments;
   private int dataSegmentLength;
   private Map<String, Integer> labels;
-  private List<Integer> program;
+  private SymbolTable symbols;
+  private int[] program;
+  private int programSize = 0;
   private List<Byte> data;
   private int programLength = 0;
   private boolean assembled = false;
   private boolean verbose = false;
+  private ForkJoinPool pool = ForkJoinPool.commonPool();
+  private SegmentCache cache = null;
+  private boolean trapSyscalls = false;
+  private boolean relocatable = false;
+  // Labels referenced but not defined, left for the linker in a relocatable program
+  private Set<String> undefined = new TreeSet<>();
+
+  // Names referenced as operands, indexed by the ids stored in segment fixups
+  private Map<String, Integer> symbolIds;
+  private List<String> symbolNames;
+
+  public Assembler(File source, boolean verbose) throws IOException {
+    this(new FileReader(source), verbose);
+  }
 
-  public Assembler(File source, boolean verbose) throws FileNotFoundException {
-    segments = new HashMap<>();
+  public Assembler(Reader source, boolean verbose) throws IOException {
+    segments = new LinkedHashMap<>();
     dataSegmentLength = 0;
     labels = new HashMap<>();
-    program = new ArrayList<>();
+    symbols = new SymbolTable();
+    program = new int[256];
     data = new ArrayList<>();
+    symbolIds = new HashMap<>();
+    symbolNames = new ArrayList<>();
     this.verbose = verbose;
 
     labels.putAll(Syscall.getMapping());
 
-    List<String> fileLines = new ArrayList<>();
-    Scanner fileReader = new Scanner(source);
-    while (fileReader.hasNextLine()) {
-      fileLines.add(fileReader.nextLine());
-    }
-    fileReader.close();
-
-    String activeSegmentName = "";
-    List<String> activeSegment = new ArrayList<>();
-    int ssln = 0;
-    boolean inSegment = false;
+    SegmentData activeSegment = null;
+    String line = null;
     int lineNum = 0;
-    for (String line : fileLines) {
-      if (line.contains("{")) {
-        if (inSegment) {
-          throw new AssemblyException(lineNum, line, "Nested segments are not allowed");
-        }
-        inSegment = true;
-        ssln = lineNum;
-        activeSegmentName = line.substring(0, line.indexOf("{")).strip();
-        if (!validateSegmentName(activeSegmentName)) {
-          throw new AssemblyException(lineNum, line, "The segment name was not valid");
-        } else if (segments.containsKey(activeSegmentName)) {
-          throw new AssemblyException(lineNum, line,
-              "A segment with this name has already been defined");
-        }
-      } else if (line.contains("}")) {
-        if (!inSegment) {
+    try (BufferedReader reader = new BufferedReader(source)) {
+      String next;
+      while ((next = reader.readLine()) != null) {
+        line = next;
+        if (line.contains("{")) {
+          if (activeSegment != null) {
+            throw new AssemblyException(lineNum, line, "Nested segments are not allowed");
+          }
+          String name = line.substring(0, line.indexOf("{")).strip();
+          if (!validateSegmentName(name)) {
+            throw new AssemblyException(lineNum, line, "The segment name was not valid");
+          } else if (segments.containsKey(name)) {
+            throw new AssemblyException(lineNum, line,
+                "A segment with this name has already been defined");
+          }
+          activeSegment = new SegmentData(name, lineNum);
+        } else if (line.contains("}")) {
+          if (activeSegment == null) {
+            throw new AssemblyException(lineNum, line,
+                "Cannot end a segment when not inside a segment");
+          }
+
+          String preLine = line.substring(0, line.indexOf("}")).strip();
+          if (preLine.length() > 0) {
+            addLine(activeSegment, preLine, lineNum);
+          }
+          log("Discovered segment called \"" + activeSegment.name + "\" starting at line "
+              + activeSegment.startingLineNum);
+          segments.put(activeSegment.name, activeSegment);
+          activeSegment = null;
+        } else if (activeSegment != null) {
+          String sline = line.strip();
+          if (sline.length() > 0 && !sline.startsWith("//")) {
+            addLine(activeSegment, sline, lineNum);
+          }
+        } else if (!line.isBlank() && !line.strip().startsWith("//")) {
           throw new AssemblyException(lineNum, line,
-              "Cannot end a segment when not inside a segment");
+              "Instructions are not valid outside a segment");
         }
 
-        String preLine = line.substring(0, line.indexOf("}")).strip();
-        if (preLine.length() > 0) {
-          activeSegment.add(preLine);
-        }
-        inSegment = false;
-        log("Discovered segment called \""+activeSegmentName+"\" starting at line " + ssln);
-        segments.put(activeSegmentName, new SegmentData(activeSegment, ssln));
-        activeSegment = new ArrayList<>();
-      } else if (inSegment) {
-        String sline = line.strip();
-        if (sline.length() > 0 && !sline.startsWith("//")) {
-          activeSegment.add(sline);
-        }
-      } else if (!line.strip().startsWith("//")) {
-        throw new AssemblyException(lineNum, line, "Instructions are not valid outside a segment");
+        lineNum++;
       }
-
-      lineNum++;
     }
-    if (inSegment) {
-      throw new AssemblyException(lineNum - 1, fileLines.get(lineNum - 1),
-          "Unexpected EOF inside block " + activeSegmentName);
+    if (activeSegment != null) {
+      throw new AssemblyException(lineNum - 1, line,
+          "Unexpected EOF inside block " + activeSegment.name);
     }
   }
 
+  // Function segments are encoded in parallel on the given pool, or serially if it is null
+  public void setPool(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  // Functions whose source and referenced labels are unchanged are taken from the cache
+  public void setCache(SegmentCache cache) {
+    this.cache = cache;
+  }
+
+  /*
+  Lowers every SYS to a single TRAP word, which runs the syscall on the host rather than through
+  the OS table. The program then needs a machine that implements TRAP, and leaves $k0, $k1 and
+  $ra alone across syscalls.
+   */
+  public void setTrapSyscalls(boolean trapSyscalls) {
+    this.trapSyscalls = trapSyscalls;
+  }
+
+  /*
+  Assembles the source as one object of a larger program: main becomes optional, and labels that
+  are not defined here are left at 0 for the linker rather than rejected. Write the result with
+  writeObject.
+   */
+  public void setRelocatable(boolean relocatable) {
+    this.relocatable = relocatable;
+  }
+
   public void assemble() {
-    if (!segments.containsKey("main")) {
+    if (!relocatable && !segments.containsKey("main")) {
       throw new AssemblyException("No main segment found in file");
     }
 
-    int nonFuncSegs = 1;
-    if (segments.containsKey("data")) {
-      this.processDataSegment();
-      nonFuncSegs += 1;
+    if (trapSyscalls) {
+      for (SegmentData segment : segments.values()) {
+        segment.lower(InstructionSet.SYS, InstructionSet.TRAP);
+      }
+    }
+    for (SegmentData segment : segments.values()) {
+      segment.resolveBranches();
     }
 
-    if (segments.size() > nonFuncSegs) {
-      for (String sname : segments.keySet()) {
-        if (sname.equals("data") || sname.equals("main")) {
-          continue;
-        }
-
-        this.defineFunction(sname);
-      }
+    if (segments.containsKey("data")) {
+      this.processDataSegment();
     }
-    defineMain();
 
+    layoutFunctions();
     resolveLabels();
 
-    processFunction("main");
-    processFunctions();
+    encodeFunctions(layoutOrder());
+    if (cache != null) {
+      cache.retain(segments.keySet());
+    }
 
     assembled = true;
   }
@@ -125,7 +183,11 @@ public class Assembler {
     if (!assembled) {
       throw new IllegalStateException("Program cannot be fetched before it is assembled");
     }
-    return program;
+    List<Integer> out = new ArrayList<>(programSize);
+    for (int i = 0; i < programSize; i++) {
+      out.add(program[i]);
+    }
+    return out;
   }
 
   public List<Byte> getData() {
@@ -135,11 +197,119 @@ public class Assembler {
     return data;
   }
 
+  // Functions and data labels with their load addresses, for tools working on the executable
+  public SymbolTable getSymbols() {
+    if (!assembled) {
+      throw new IllegalStateException("Symbols cannot be fetched before the program is assembled");
+    }
+    return symbols;
+  }
+
+  // Labels the program references without defining them; empty unless it is relocatable
+  public Set<String> getUndefined() {
+    return undefined;
+  }
+
   public void writeToFile(File out) throws IOException {
     if (!assembled) {
       throw new IllegalStateException("Program cannot be exported before it is assembled");
     }
-    ExecutableGenerator.writeExecutable(out, this.program, this.data);
+    if (!undefined.isEmpty()) {
+      throw new AssemblyException("Cannot write an executable that references undefined symbols "
+          + undefined + "; write an object and link it instead");
+    }
+    byte[] dataBytes = new byte[data.size()];
+    for (int i = 0; i < dataBytes.length; i++) {
+      dataBytes[i] = data.get(i);
+    }
+    ExecutableGenerator.writeExecutable(out, Arrays.copyOf(program, programSize), dataBytes,
+        this.verbose);
+  }
+
+  public void writeObject(File out) throws IOException {
+    toObject().write(out);
+  }
+
+  /*
+  The program as a relocatable object. Every instruction with an operand naming a function or
+  data label gets a relocation, including labels defined in this source, since the linker moves
+  both the text and the data of each object.
+   */
+  public ObjectFile toObject() {
+    if (!assembled) {
+      throw new IllegalStateException("Object cannot be exported before the program is assembled");
+    }
+    byte[] dataBytes = new byte[data.size()];
+    for (int i = 0; i < dataBytes.length; i++) {
+      dataBytes[i] = data.get(i);
+    }
+
+    List<SymbolTable.Symbol> defined = symbols.getSymbols();
+    int symbolCount = defined.size();
+    String[] definedNames = new String[symbolCount];
+    char[] symbolKinds = new char[symbolCount];
+    int[] symbolValues = new int[symbolCount];
+    int[] symbolSizes = new int[symbolCount];
+    for (int s = 0; s < symbolCount; s++) {
+      SymbolTable.Symbol symbol = defined.get(s);
+      definedNames[s] = symbol.name;
+      symbolKinds[s] = symbol.kind;
+      symbolValues[s] = symbol.kind == SymbolTable.TEXT
+          ? (symbol.address - MemoryStructure.PROGRAM_TEXT_BEGIN) / 4
+          : symbol.address - MemoryStructure.DATA_BEGIN;
+      symbolSizes[s] = symbol.size;
+    }
+
+    Map<String, Integer> constants = Syscall.getMapping();
+    Map<String, Integer> nameIds = new LinkedHashMap<>();
+    ObjectFile.IntList relocWords = new ObjectFile.IntList();
+    List<InstructionSet> relocInstructions = new ArrayList<>();
+    ObjectFile.IntList operandStart = new ObjectFile.IntList();
+    ObjectFile.IntList operands = new ObjectFile.IntList();
+    ObjectFile.IntList refStart = new ObjectFile.IntList();
+    ObjectFile.IntList refOperands = new ObjectFile.IntList();
+    ObjectFile.IntList refNames = new ObjectFile.IntList();
+    operandStart.add(0);
+    refStart.add(0);
+
+    for (SegmentData segment : layoutOrder()) {
+      int word = segment.base;
+      int f = 0;
+      for (int i = 0; i < segment.count; i++) {
+        int first = segment.operandStart[i];
+        int refs = refOperands.size;
+        for (; f < segment.fixupCount && segment.fixupInstructions[f] == i; f++) {
+          String symbol = symbolNames.get(segment.fixupSymbols[f]);
+          if (constants.containsKey(symbol)) {
+            continue;
+          }
+          Integer id = nameIds.get(symbol);
+          if (id == null) {
+            id = nameIds.size();
+            nameIds.put(symbol, id);
+          }
+          refOperands.add(segment.fixupOperands[f] - first);
+          refNames.add(id);
+        }
+
+        if (refOperands.size > refs) {
+          relocWords.add(word);
+          relocInstructions.add(segment.instructions[i]);
+          for (int o = first; o < segment.operandStart[i + 1]; o++) {
+            operands.add(segment.operands[o]);
+          }
+          operandStart.add(operands.size);
+          refStart.add(refOperands.size);
+        }
+        word += segment.instructions[i].trueSize();
+      }
+    }
+
+    return new ObjectFile(Arrays.copyOf(program, programSize), dataBytes, dataSegmentLength,
+        definedNames, symbolKinds, symbolValues, symbolSizes,
+        nameIds.keySet().toArray(new String[0]), relocWords.toArray(),
+        relocInstructions.toArray(new InstructionSet[0]), operandStart.toArray(),
+        operands.toArray(), refStart.toArray(), refOperands.toArray(), refNames.toArray());
   }
 
   private void processDataSegment() {
@@ -231,7 +401,10 @@ public class Assembler {
               "Cannot define a label with name " + pts[1] + ": That label is already defined");
         }
 
-        labels.put(pts[1], dataSegmentLength);
+        // A data label stands for its address, as the data is loaded at DATA_BEGIN
+        labels.put(pts[1], MemoryStructure.DATA_BEGIN + dataSegmentLength);
+        symbols.add(pts[1], SymbolTable.DATA, MemoryStructure.DATA_BEGIN + dataSegmentLength,
+            size);
       }
       dataSegmentLength += size;
 
@@ -253,66 +426,101 @@ public class Assembler {
     }
   }
 
-  private void defineFunction(String name) {
-    if (labels.containsKey(name)) {
-      throw new AssemblyException("Cannot process function " + name + ": A label with the same "
-          + "name is already defined");
+  private void addLine(SegmentData segment, String line, int lineNum) {
+    if (segment.name.equals("data")) {
+      segment.lines.add(line);
+      return;
     }
-    labels.put(name, this.programLength);
-    int fxLen = 0;
-    int ln = 0;
-
-    SegmentData segment = this.segments.get(name);
 
-    for (String line : segment.lines) {
-      String tline = line;
-      if (line.contains("//")) {
-        tline = line.substring(0, line.indexOf("//")).strip();
-      }
+    String code = line;
+    if (code.contains("//")) {
+      code = code.substring(0, code.indexOf("//")).strip();
+    }
 
-      String[] pts = tline.split(" ");
-      InstructionSet instr = InstructionSet.match(pts[0]);
-      if (instr == null) {
-        throw new AssemblyException(ln + segment.startingLineNum, tline,
-            "Unknown instruction " + pts[0]);
-      }
-      fxLen += instr.trueSize();
-      ln++;
+    int end = tokenEnd(code, 0);
+    InstructionSet instr = InstructionSet.match(code, 0, end);
+    if (instr == null) {
+      throw new AssemblyException(lineNum, segment.name, line,
+          "Unknown instruction " + code.substring(0, end));
     }
+    int index = segment.addInstruction(instr, line, lineNum);
 
-    this.programLength += fxLen;
-  }
+    int start = tokenStart(code, end);
+    while (start < code.length()) {
+      end = tokenEnd(code, start);
 
-  private void defineMain() {
-    int fxLen = 0;
-    int ln = 0;
+      if (code.charAt(start) == '$') {
+        if (end - start == 1) {
+          throw new AssemblyException(lineNum, segment.name, line,
+              "Unknown symbol $; Not a valid label");
+        }
+        Register reg = Register.match(code, start + 1, end);
+        if (reg == null) {
+          throw new AssemblyException(lineNum, segment.name, line, "Unknown register "
+              + code.substring(start, end) + "; Was not found in the register map");
+        }
+        segment.addOperand(reg.getIndex());
+      } else if (isNumeric(code.charAt(start))) {
+        String comp = code.substring(start, end);
+        try {
+          segment.addOperand(parseInt(comp));
+        } catch (NumberFormatException e) {
+          throw new AssemblyException(lineNum, segment.name, line,
+              "Unknown symbol " + comp
+                  + "; Was not an instruction, register, value, or defined label");
+        }
+      } else {
+        segment.addFixup(index, symbolId(code.substring(start, end)));
+      }
 
-    SegmentData segment = this.segments.get("main");
+      start = tokenStart(code, end);
+    }
+  }
 
-    for (String line : segment.lines) {
-      String tline = line;
-      if (line.contains("//")) {
-        tline = line.substring(0, line.indexOf("//")).strip();
-      }
+  private int symbolId(String name) {
+    Integer id = symbolIds.get(name);
+    if (id == null) {
+      id = symbolNames.size();
+      symbolIds.put(name, id);
+      symbolNames.add(name);
+    }
+    return id;
+  }
 
-      String[] pts = tline.split(" ");
-      InstructionSet instr = InstructionSet.match(pts[0]);
-      if (instr == null) {
-        throw new AssemblyException(ln + segment.startingLineNum, tline,
-            "Unknown instruction " + pts[0]);
+  // Main goes first, followed by every other function in the order they appear in the source
+  private List<SegmentData> layoutOrder() {
+    List<SegmentData> functions = new ArrayList<>();
+    if (segments.containsKey("main")) {
+      functions.add(segments.get("main"));
+    }
+    for (SegmentData segment : segments.values()) {
+      if (isFunction(segment)) {
+        functions.add(segment);
       }
-      fxLen += instr.trueSize();
-      ln++;
     }
+    return functions;
+  }
 
-    for (String lkey : this.labels.keySet()) {
-      if (segments.containsKey(lkey)) {
-        int base = labels.get(lkey);
-        labels.put(lkey, base + fxLen);
+  private void layoutFunctions() {
+    programLength = 0;
+    for (SegmentData segment : layoutOrder()) {
+      if (segment.name.equals("main")) {
+        segment.base = 0;
+        programLength = segment.length;
+        symbols.add(segment.name, SymbolTable.TEXT, MemoryStructure.PROGRAM_TEXT_BEGIN,
+            segment.length * 4);
+        continue;
+      }
+      if (labels.containsKey(segment.name)) {
+        throw new AssemblyException("Cannot process function " + segment.name + ": A label with "
+            + "the same name is already defined");
       }
+      segment.base = programLength;
+      labels.put(segment.name, segment.base);
+      symbols.add(segment.name, SymbolTable.TEXT,
+          MemoryStructure.PROGRAM_TEXT_BEGIN + segment.base * 4, segment.length * 4);
+      programLength += segment.length;
     }
-
-    this.programLength += fxLen;
   }
 
   private void resolveLabels() {
@@ -324,98 +532,202 @@ public class Assembler {
       }
     }
 
-    for (String sName : segments.keySet()) {
-      if (sName.equals("data")) {
+    for (SegmentData segment : segments.values()) {
+      if (segment.name.equals("data")) {
         continue;
       }
 
-      SegmentData segment = segments.get(sName);
-
-      int ln = 0;
-      while (ln < segment.lines.size()) {
-        String tline = segment.lines.get(ln);
-        if (tline.contains("//")) {
-          tline = tline.substring(0, tline.indexOf("//")).strip();
+      for (int f = 0; f < segment.fixupCount; f++) {
+        String symbol = symbolNames.get(segment.fixupSymbols[f]);
+        Integer value = labels.get(symbol);
+        if (value == null && relocatable) {
+          // Resolves to 0 from here on, so cached functions record it like any other label
+          undefined.add(symbol);
+          labels.put(symbol, 0);
+          value = 0;
+        } else if (value == null) {
+          int instr = segment.fixupInstructions[f];
+          throw new AssemblyException(segment.lineNums[instr], segment.name, segment.text[instr],
+              "Unknown symbol " + symbol
+                  + "; Was not an instruction, register, value, or defined label");
         }
-        List<String> components = Arrays.asList(tline.split(" "));
-        for (int ci = 0; ci < components.size(); ci++) {
-          if (labels.containsKey(components.get(ci))) {
-            components.set(ci, "" + labels.get(components.get(ci)));
-          }
+        segment.operands[segment.fixupOperands[f]] = value;
+      }
+    }
+  }
 
-          if (ci > 0) {
-            String comp = components.get(ci);
-            if (!comp.startsWith("$")) {
-              try {
-                int x = parseInt(comp);
-                components.set(ci, "" + x);
-              } catch (NumberFormatException e) {
-                throw new AssemblyException(segment.startingLineNum + ln, tline,
-                    "Unknown symbol " + comp
-                        + "; Was not an instruction, register, value, or defined label");
-              }
-            } else if (comp.length() > 1) {
-              Register reg = Register.match(comp.substring(1));
-              if (reg != null) {
-                components.set(ci, "" + reg.getIndex());
-              } else {
-                throw new AssemblyException(segment.startingLineNum + ln, tline,
-                    "Unknown register " + comp + "; Was not found in the register map");
-              }
-            } else {
-              throw new AssemblyException(segment.startingLineNum + ln, tline,
-                  "Unknown symbol $; Not a valid label");
-            }
-          }
-        }
-        segment.lines.set(ln, String.join(" ", components));
-        ln++;
+  /*
+  Every function is encoded on its own once labels are resolved, so the work is spread over the
+  pool and the results are concatenated in layout order afterwards. Log output and errors are
+  collected per function and reported in that same order, so a parallel run prints and fails
+  exactly like a serial one.
+   */
+  private void encodeFunctions(List<SegmentData> functions) {
+    if (pool == null || functions.size() < 2) {
+      for (SegmentData segment : functions) {
+        processFunction(segment);
+      }
+    } else {
+      pool.invoke(new EncodeTask(functions, 0, functions.size()));
+    }
+
+    for (SegmentData segment : functions) {
+      if (segment.log != null) {
+        System.out.print(segment.log);
+      }
+      if (segment.error != null) {
+        throw segment.error;
       }
+
+      if (programSize + segment.codeSize > program.length) {
+        program = Arrays.copyOf(program, Math.max(program.length * 2,
+            programSize + segment.codeSize));
+      }
+      System.arraycopy(segment.code, 0, program, programSize, segment.codeSize);
+      programSize += segment.codeSize;
+      segment.code = null;
     }
   }
 
-  private void processFunctions() {
-    for (String sname : segments.keySet()) {
-      if (!sname.equals("main") && !sname.equals("data")) {
-        processFunction(sname);
+  private void processFunction(SegmentData segment) {
+    StringBuilder out = this.verbose ? new StringBuilder() : null;
+    segment.log = out;
+    segment.code = new int[Math.max(segment.length, 1)];
+    segment.codeSize = 0;
+
+    byte[] hash = null;
+    if (cache != null) {
+      hash = segment.hash();
+      SegmentCache.Entry entry = cache.find(segment.name, hash);
+      if (entry != null && patchFunction(segment, entry, out)) {
+        return;
+      }
+      segment.codeSize = 0;
+    }
+    if (out != null) {
+      out.append("Processing function ").append(segment.name).append("...\n");
+    }
+
+    int[] wordStart = new int[segment.count + 1];
+    for (int i = 0; i < segment.count; i++) {
+      wordStart[i] = segment.codeSize;
+      if (!encodeInstruction(segment, i, out)) {
+        return;
       }
     }
+    wordStart[segment.count] = segment.codeSize;
+
+    if (cache != null) {
+      Map<String, Integer> deps = new LinkedHashMap<>();
+      for (int f = 0; f < segment.fixupCount; f++) {
+        String symbol = symbolNames.get(segment.fixupSymbols[f]);
+        deps.put(symbol, labels.get(symbol));
+      }
+      String[] names = deps.keySet().toArray(new String[0]);
+      int[] values = new int[names.length];
+      for (int d = 0; d < names.length; d++) {
+        values[d] = deps.get(names[d]);
+      }
+      cache.store(segment.name, new SegmentCache.Entry(hash, names, values, wordStart,
+          Arrays.copyOf(segment.code, segment.codeSize)));
+    }
   }
 
-  private void processFunction(String name) {
-    SegmentData data = this.segments.get(name);
-    log("Processing function "+name+"...");
+  /*
+  The source of the function is unchanged, so only instructions that reference a label whose
+  address moved need to be encoded again; their words are patched over a copy of the cached code.
+  Returns false if the cached words cannot be reused.
+   */
+  private boolean patchFunction(SegmentData segment, SegmentCache.Entry entry, StringBuilder out) {
+    if (entry.resolvesSame(labels)) {
+      if (out != null) {
+        out.append("Reusing cached function ").append(segment.name).append("\n");
+      }
+      segment.code = entry.code;
+      segment.codeSize = entry.code.length;
+      cache.recordHit();
+      return true;
+    }
 
-    int ln = 0;
-    while (ln < data.lines.size()) {
-      String line = data.lines.get(ln);
+    if (out != null) {
+      out.append("Patching cached function ").append(segment.name).append("...\n");
+    }
+    int[] code = Arrays.copyOf(entry.code, entry.code.length);
+    int lastPatched = -1;
+    for (int f = 0; f < segment.fixupCount; f++) {
+      int i = segment.fixupInstructions[f];
+      if (i == lastPatched) {
+        continue;
+      }
+      lastPatched = i;
 
-      String instr;
-      String[] args;
-      try {
-        instr = line.substring(0, line.indexOf(" "));
-        args = line.substring(line.indexOf(" ") + 1).split(" ");
-      } catch (IndexOutOfBoundsException e) {
-        instr = line;
-        args = new String[0];
+      segment.codeSize = 0;
+      if (!encodeInstruction(segment, i, out)) {
+        return true;
+      }
+      if (segment.codeSize != entry.wordStart[i + 1] - entry.wordStart[i]) {
+        return false;
       }
+      System.arraycopy(segment.code, 0, code, entry.wordStart[i], segment.codeSize);
+    }
 
-      try {
-        InstructionSet cmdType = InstructionSet.match(instr);
-        log("\t:: Resolving command "+cmdType.name()+" with arguments "+Arrays.toString(args));
-        List<Integer> cmds = cmdType.encode(args);
-        for (Integer cmd : cmds) {
-          log("\t\t> 0x" + String.format("%08X", cmd));
-        }
-        program.addAll(cmds);
-      } catch (IllegalArgumentException e) {
-        throw new AssemblyException(data.startingLineNum + ln, name, line, e.getMessage());
-      } catch (NullPointerException e) {
-        throw new AssemblyException(data.startingLineNum + ln, name, line,
-            "No such instruction " + instr);
+    segment.code = code;
+    segment.codeSize = code.length;
+    cache.store(segment.name, entry.withDependencies(labels, code));
+    cache.recordPatch();
+    return true;
+  }
+
+  // Appends the words for instruction i to the segment, or records the error and returns false
+  private boolean encodeInstruction(SegmentData segment, int i, StringBuilder out) {
+    int first = segment.operandStart[i];
+    int count = segment.operandStart[i + 1] - first;
+    InstructionSet cmdType = segment.instructions[i];
+    if (out != null) {
+      out.append("\t:: Resolving command ").append(cmdType.name()).append(" with arguments ")
+          .append(Arrays.toString(Arrays.copyOfRange(segment.operands, first, first + count)))
+          .append('\n');
+    }
+
+    int pos = segment.reserve(cmdType.trueSize());
+    try {
+      cmdType.encode(segment.operands, first, count, segment.code, pos);
+    } catch (IllegalArgumentException e) {
+      segment.error = new AssemblyException(segment.lineNums[i], segment.name, segment.text[i],
+          e.getMessage());
+      return false;
+    }
+
+    if (out != null) {
+      for (int w = pos; w < segment.codeSize; w++) {
+        out.append("\t\t> 0x").append(String.format("%08X", segment.code[w])).append('\n');
       }
-      ln++;
     }
+    return true;
+  }
+
+  private static boolean isFunction(SegmentData segment) {
+    return !segment.name.equals("main") && !segment.name.equals("data");
+  }
+
+  private static int tokenStart(String line, int from) {
+    int i = from;
+    while (i < line.length() && Character.isWhitespace(line.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  private static int tokenEnd(String line, int from) {
+    int i = from;
+    while (i < line.length() && !Character.isWhitespace(line.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isNumeric(char c) {
+    return (c >= '0' && c <= '9') || c == '-' || c == '+';
   }
 
   private static boolean validateSegmentName(String name) {
@@ -442,14 +754,186 @@ public class Assembler {
     }
   }
 
+  private class EncodeTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<SegmentData> functions;
+    private final int from;
+    private final int to;
+
+    EncodeTask(List<SegmentData> functions, int from, int to) {
+      this.functions = functions;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from == 1) {
+        processFunction(functions.get(from));
+        return;
+      }
+      int mid = (from + to) >>> 1;
+      invokeAll(new EncodeTask(functions, from, mid), new EncodeTask(functions, mid, to));
+    }
+  }
+
+  /*
+  Data segments keep their raw lines. Function segments hold one entry per instruction line;
+  the operands of instruction i are operands[operandStart[i] .. operandStart[i + 1]).
+   */
   private static class SegmentData {
 
-    List<String> lines;
+    String name;
     int startingLineNum;
+    List<String> lines;
 
-    public SegmentData(List<String> lines, int ln) {
-      this.lines = lines;
+    InstructionSet[] instructions = new InstructionSet[16];
+    String[] text = new String[16];
+    int[] lineNums = new int[16];
+    int[] operandStart = new int[17];
+    int count;
+    int length;
+    int base;
+    // Set once an instruction has been replaced by lower
+    boolean lowered;
+
+    int[] operands = new int[32];
+    int operandCount;
+
+    int[] fixupInstructions = new int[8];
+    int[] fixupOperands = new int[8];
+    int[] fixupSymbols = new int[8];
+    int fixupCount;
+
+    // Encoder output, filled in by processFunction
+    int[] code;
+    int codeSize;
+    StringBuilder log;
+    AssemblyException error;
+
+    public SegmentData(String name, int ln) {
+      this.name = name;
       this.startingLineNum = ln;
+      this.lines = new ArrayList<>();
+    }
+
+    int addInstruction(InstructionSet instr, String line, int lineNum) {
+      if (count == instructions.length) {
+        instructions = Arrays.copyOf(instructions, count * 2);
+        text = Arrays.copyOf(text, count * 2);
+        lineNums = Arrays.copyOf(lineNums, count * 2);
+        operandStart = Arrays.copyOf(operandStart, count * 2 + 1);
+      }
+      instructions[count] = instr;
+      text[count] = line;
+      lineNums[count] = lineNum;
+      operandStart[count + 1] = operandCount;
+      length += instr.trueSize();
+      return count++;
+    }
+
+    void addOperand(int value) {
+      if (operandCount == operands.length) {
+        operands = Arrays.copyOf(operands, operandCount * 2);
+      }
+      operands[operandCount++] = value;
+      operandStart[count] = operandCount;
+    }
+
+    // Replaces every instruction from with to, which must take the same operands
+    void lower(InstructionSet from, InstructionSet to) {
+      for (int i = 0; i < count; i++) {
+        if (instructions[i] == from) {
+          instructions[i] = to;
+          length += to.trueSize() - from.trueSize();
+          lowered = true;
+        }
+      }
+    }
+
+    /*
+    The offset of BIZ and BZL counts source lines from the branch itself, so BIZ $t0 3 skips the
+    next two lines. The jump adds a byte offset to what its MPC read, the address of the word
+    after the MPC, so each line offset becomes the distance in bytes from there to the first word
+    of the target line. Offsets given as labels are left as they are.
+     */
+    void resolveBranches() {
+      int[] wordStart = new int[count + 1];
+      for (int i = 0; i < count; i++) {
+        wordStart[i + 1] = wordStart[i] + instructions[i].trueSize();
+      }
+
+      for (int i = 0; i < count; i++) {
+        int base;
+        if (instructions[i] == InstructionSet.BIZ) {
+          base = 1;
+        } else if (instructions[i] == InstructionSet.BZL) {
+          base = 3;
+        } else {
+          continue;
+        }
+        int slot = operandStart[i] + 1;
+        if (operandStart[i + 1] - operandStart[i] != 2 || isFixup(slot)) {
+          // Wrong operand counts are reported when the instruction is encoded
+          continue;
+        }
+
+        int lines = operands[slot];
+        if (lines < 1 || i + lines >= count) {
+          throw new AssemblyException(lineNums[i], name, text[i], "Branch offset " + lines
+              + " must name a later line of the same function");
+        }
+        operands[slot] = (wordStart[i + lines] - wordStart[i] - base) * 4;
+      }
+    }
+
+    private boolean isFixup(int operand) {
+      for (int f = 0; f < fixupCount; f++) {
+        if (fixupOperands[f] == operand) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    // SHA-256 over the instruction lines and whether they were lowered, which are all the encoded
+    // words depend on besides labels
+    byte[] hash() {
+      MessageDigest digest;
+      try {
+        digest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+      for (int i = 0; i < count; i++) {
+        digest.update(text[i].getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) '\n');
+      }
+      digest.update((byte) (lowered ? 1 : 0));
+      return digest.digest();
+    }
+
+    // Makes room for that many more words of code and returns where they start
+    int reserve(int words) {
+      if (codeSize + words > code.length) {
+        code = Arrays.copyOf(code, Math.max(code.length * 2, codeSize + words));
+      }
+      codeSize += words;
+      return codeSize - words;
+    }
+
+    void addFixup(int instr, int symbol) {
+      if (fixupCount == fixupSymbols.length) {
+        fixupInstructions = Arrays.copyOf(fixupInstructions, fixupCount * 2);
+        fixupOperands = Arrays.copyOf(fixupOperands, fixupCount * 2);
+        fixupSymbols = Arrays.copyOf(fixupSymbols, fixupCount * 2);
+      }
+      fixupInstructions[fixupCount] = instr;
+      fixupOperands[fixupCount] = operandCount;
+      fixupSymbols[fixupCount] = symbol;
+      fixupCount++;
+      addOperand(0);
     }
   }
 }
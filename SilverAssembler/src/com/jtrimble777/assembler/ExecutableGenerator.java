@@ -1,13 +1,11 @@
 package com.jtrimble777.assembler;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public class ExecutableGenerator {
 
@@ -17,78 +15,69 @@ public class ExecutableGenerator {
   Entry Point (4 bytes), Data Header Start (2 bytes)(0 for n/a), Program Headers Start (2 bytes)
 
   Data Header:
-  Start File Pos (4 bytes), Length (4 bytes)
+  Start File Pos (4 bytes), Length (4 bytes)(in bytes)
 
   Program Header(s):
-  Start File Pos (4 bytes), Length (4 bytes), Offset (4 bytes) [Position to load in mem; Rel to text start]
+  Start File Pos (4 bytes), Length (4 bytes)(in words), Offset (4 bytes) [Position to load in mem; Rel to text start]
 
   Sections...
    */
   public static void writeExecutable(File dest, List<Integer> program, List<Byte> data)
     throws IOException {
-    List<Byte> executable = new ArrayList<>();
-
-    // Main Header
-    executable.addAll(lob(0));
-    executable.addAll(lob2(data.size() > 0 ? 8 : 0,
-        data.size() > 0 ? 16 : 8));
-
-    // Data header
-    if (data.size() > 0 ){
-      executable.addAll(lob(28, data.size()));
-    }
-
-    // Program header
-    executable.addAll(lob(data.size() > 0 ? (28 + data.size()) : 20,
-        program.size(),
-        0));
-
-    executable.addAll(data);
-    executable.addAll(program.stream()
-        .flatMap(ExecutableGenerator::as4Bytes)
-        .collect(Collectors.toList()));
-
-    FileOutputStream fos = new FileOutputStream(dest);
-    fos.write(primitivize(executable));
+    writeExecutable(dest, program, data, false);
   }
 
-  private static byte[] primitivize(List<Byte> input) {
-    byte[] out = new byte[input.size()];
-
-    for(int i=0; i<out.length; i++) {
-      out[i] = input.get(i);
+  public static void writeExecutable(File dest, List<Integer> program, List<Byte> data,
+      boolean verbose) throws IOException {
+    int[] words = new int[program.size()];
+    for (int i = 0; i < words.length; i++) {
+      words[i] = program.get(i);
+    }
+    byte[] bytes = new byte[data.size()];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = data.get(i);
     }
 
-    return out;
-  }
-
-  private static List<Byte> lob(Integer... src){
-    return Arrays.stream(src)
-        .flatMap(ExecutableGenerator::as4Bytes)
-        .collect(Collectors.toList());
+    writeExecutable(dest, words, bytes, verbose);
   }
 
-  private static Stream<Byte> as4Bytes(int i) {
-    byte b1 = (byte)(i >> 24);
-    byte b2 = (byte)((i >> 16) % 256);
-    byte b3 = (byte)((i >> 8) % 256);
-    byte b4 = (byte)(i  % 256);
-    System.out.println(String.format("Converting integer command %08X to [%02X, %02X, %02X, %02X]",
-        i, b1, b2, b3, b4));
+  public static void writeExecutable(File dest, int[] program, byte[] data, boolean verbose)
+      throws IOException {
+    boolean hasData = data.length > 0;
+    int headersLength = hasData ? 28 : 20;
+    ByteBuffer executable = ByteBuffer.allocate(headersLength + data.length
+        + program.length * 4);
 
-    return List.of(b1, b2, b3, b4).stream();
-  }
+    // Main Header
+    executable.putInt(0);
+    executable.putShort((short) (hasData ? 8 : 0));
+    executable.putShort((short) (hasData ? 16 : 8));
 
-  private static List<Byte> lob2(Integer... src){
-    return Arrays.stream(src)
-        .flatMap(ExecutableGenerator::as2Bytes)
-        .collect(Collectors.toList());
-  }
+    // Data header
+    if (hasData) {
+      executable.putInt(28);
+      executable.putInt(data.length);
+    }
 
-  private static Stream<Byte> as2Bytes(int i) {
-    byte b1 = (byte)((i >> 8) % 256);
-    byte b2 = (byte)(i  % 256);
+    // Program header
+    executable.putInt(headersLength + data.length);
+    executable.putInt(program.length);
+    executable.putInt(0);
+
+    executable.put(data);
+    for (int word : program) {
+      if (verbose) {
+        System.out.println(String.format("Writing command %08X", word));
+      }
+      executable.putInt(word);
+    }
 
-    return List.of(b1, b2).stream();
+    executable.flip();
+    try (FileChannel out = FileChannel.open(dest.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (executable.hasRemaining()) {
+        out.write(executable);
+      }
+    }
   }
 }
@@ -0,0 +1,271 @@
+package com.jtrimble777.assembler;
+
+import com.jtrimble777.common.MemoryStructure;
+import com.jtrimble777.common.SymbolTable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+Merges relocatable objects into one executable. The object defining main is laid out first, so
+main stays at the entry point, followed by the others in the order they were added; their data
+segments are concatenated in the same order, each starting on a word boundary.
+
+Every symbol is entered once into a hash table of final values, so each name referenced by an
+object is resolved with one lookup however many relocations use it. Relocations are independent
+of each other and each rewrites only the words of its own instruction, so they are applied in
+chunks spread over the pool. Errors are reported for the first failing chunk in layout order,
+like a serial link would.
+ */
+public class Linker {
+  // Relocations applied by one task
+  private static final int RELOCATION_CHUNK = 1024;
+
+  private final List<String> names = new ArrayList<>();
+  private final List<ObjectFile> objects = new ArrayList<>();
+  private final boolean verbose;
+  private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+  private int[] program;
+  private byte[] data;
+  private SymbolTable symbols;
+  private boolean linked = false;
+
+  public Linker(boolean verbose) {
+    this.verbose = verbose;
+  }
+
+  // Relocations are applied in parallel on the given pool, or serially if it is null
+  public void setPool(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
+  public void add(File object) throws IOException {
+    add(object.getPath(), ObjectFile.read(object));
+  }
+
+  // The name identifies the object in errors
+  public void add(String name, ObjectFile object) {
+    names.add(name);
+    objects.add(object);
+  }
+
+  public void link() {
+    int count = objects.size();
+    int main = -1;
+    for (int o = 0; o < count; o++) {
+      if (objects.get(o).defines("main")) {
+        if (main >= 0) {
+          throw new AssemblyException("main is defined in both " + names.get(main) + " and "
+              + names.get(o));
+        }
+        main = o;
+      }
+    }
+    if (main < 0) {
+      throw new AssemblyException("No object defines main");
+    }
+
+    List<ObjectFile> order = new ArrayList<>(objects);
+    List<String> orderNames = new ArrayList<>(names);
+    order.add(0, order.remove(main));
+    orderNames.add(0, orderNames.remove(main));
+
+    int[] textBase = new int[count];
+    int[] dataBase = new int[count];
+    int textLength = 0;
+    int dataLength = 0;
+    int symbolCount = 0;
+    int relocationCount = 0;
+    for (int o = 0; o < count; o++) {
+      ObjectFile object = order.get(o);
+      textBase[o] = textLength;
+      dataBase[o] = (dataLength + 3) & ~3;
+      textLength += object.text.length;
+      dataLength = dataBase[o] + object.dataLength;
+      symbolCount += object.symbolNames.length;
+      relocationCount += object.relocWords.length;
+    }
+
+    // Final value of every symbol: the word of a function, or the address of a data label
+    Map<String, Integer> values = new HashMap<>(symbolCount * 4 / 3 + 1);
+    Map<String, Integer> definedIn = new HashMap<>(symbolCount * 4 / 3 + 1);
+    symbols = new SymbolTable();
+    for (int o = 0; o < count; o++) {
+      ObjectFile object = order.get(o);
+      for (int s = 0; s < object.symbolNames.length; s++) {
+        String name = object.symbolNames[s];
+        Integer previous = definedIn.put(name, o);
+        if (previous != null) {
+          throw new AssemblyException("Symbol " + name + " is defined in both "
+              + orderNames.get(previous) + " and " + orderNames.get(o));
+        }
+
+        if (object.symbolKinds[s] == SymbolTable.TEXT) {
+          int value = textBase[o] + object.symbolValues[s];
+          values.put(name, value);
+          symbols.add(name, SymbolTable.TEXT, MemoryStructure.PROGRAM_TEXT_BEGIN + value * 4,
+              object.symbolSizes[s]);
+        } else {
+          int value = MemoryStructure.DATA_BEGIN + dataBase[o] + object.symbolValues[s];
+          values.put(name, value);
+          symbols.add(name, SymbolTable.DATA, value, object.symbolSizes[s]);
+        }
+      }
+    }
+
+    // Reserved bytes at the very end are not written, as with a single source
+    int dataEnd = 0;
+    for (int o = 0; o < count; o++) {
+      if (order.get(o).data.length > 0) {
+        dataEnd = dataBase[o] + order.get(o).data.length;
+      }
+    }
+    data = new byte[dataEnd];
+    program = new int[textLength];
+    List<Chunk> chunks = new ArrayList<>();
+    for (int o = 0; o < count; o++) {
+      ObjectFile object = order.get(o);
+      System.arraycopy(object.data, 0, data, dataBase[o], object.data.length);
+      System.arraycopy(object.text, 0, program, textBase[o], object.text.length);
+
+      int[] resolved = new int[object.names.length];
+      for (int n = 0; n < resolved.length; n++) {
+        Integer value = values.get(object.names[n]);
+        if (value == null) {
+          throw new AssemblyException("Undefined symbol " + object.names[n] + " referenced in "
+              + orderNames.get(o));
+        }
+        resolved[n] = value;
+      }
+      for (int r = 0; r < object.relocWords.length; r += RELOCATION_CHUNK) {
+        chunks.add(new Chunk(object, orderNames.get(o), textBase[o], resolved, r,
+            Math.min(r + RELOCATION_CHUNK, object.relocWords.length)));
+      }
+    }
+
+    if (pool == null || chunks.size() < 2) {
+      for (Chunk chunk : chunks) {
+        relocate(chunk);
+      }
+    } else {
+      pool.invoke(new RelocateTask(chunks, 0, chunks.size()));
+    }
+    for (Chunk chunk : chunks) {
+      if (chunk.error != null) {
+        throw chunk.error;
+      }
+    }
+
+    log(String.format("Linked %d objects: %d words of text, %d bytes of data, %d relocations",
+        count, textLength, dataLength, relocationCount));
+    linked = true;
+  }
+
+  public List<Integer> getProgram() {
+    if (!linked) {
+      throw new IllegalStateException("Program cannot be fetched before it is linked");
+    }
+    List<Integer> out = new ArrayList<>(program.length);
+    for (int word : program) {
+      out.add(word);
+    }
+    return out;
+  }
+
+  // Functions and data labels of every object at their final load addresses
+  public SymbolTable getSymbols() {
+    if (!linked) {
+      throw new IllegalStateException("Symbols cannot be fetched before the program is linked");
+    }
+    return symbols;
+  }
+
+  public void writeToFile(File out) throws IOException {
+    if (!linked) {
+      throw new IllegalStateException("Program cannot be exported before it is linked");
+    }
+    ExecutableGenerator.writeExecutable(out, program, data, verbose);
+  }
+
+  // Re-encodes each instruction of the chunk with its labels replaced by their final values
+  private void relocate(Chunk chunk) {
+    ObjectFile object = chunk.object;
+    int[] operands = new int[8];
+    for (int r = chunk.from; r < chunk.to; r++) {
+      int first = object.operandStart[r];
+      int count = object.operandStart[r + 1] - first;
+      if (count > operands.length) {
+        operands = new int[count];
+      }
+      System.arraycopy(object.operands, first, operands, 0, count);
+      for (int f = object.refStart[r]; f < object.refStart[r + 1]; f++) {
+        operands[object.refOperands[f]] = chunk.resolved[object.refNames[f]];
+      }
+
+      try {
+        object.relocInstructions[r].encode(operands, 0, count, program,
+            chunk.textBase + object.relocWords[r]);
+      } catch (IllegalArgumentException e) {
+        chunk.error = new AssemblyException("Cannot relocate " + object.relocInstructions[r]
+            + " at word " + object.relocWords[r] + " of " + chunk.name + ": " + e.getMessage());
+        return;
+      }
+    }
+  }
+
+  private void log(String msg) {
+    if (this.verbose) {
+      System.out.println(msg);
+    }
+  }
+
+  private static class Chunk {
+    final ObjectFile object;
+    final String name;
+    final int textBase;
+    // Final values of the names the object references
+    final int[] resolved;
+    final int from;
+    final int to;
+    AssemblyException error;
+
+    Chunk(ObjectFile object, String name, int textBase, int[] resolved, int from, int to) {
+      this.object = object;
+      this.name = name;
+      this.textBase = textBase;
+      this.resolved = resolved;
+      this.from = from;
+      this.to = to;
+    }
+  }
+
+  private class RelocateTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Chunk> chunks;
+    private final int from;
+    private final int to;
+
+    RelocateTask(List<Chunk> chunks, int from, int to) {
+      this.chunks = chunks;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from == 1) {
+        relocate(chunks.get(from));
+        return;
+      }
+      int mid = (from + to) >>> 1;
+      invokeAll(new RelocateTask(chunks, from, mid), new RelocateTask(chunks, mid, to));
+    }
+  }
+}
@@ -0,0 +1,249 @@
+package com.jtrimble777.assembler;
+
+import com.jtrimble777.common.InstructionSet;
+import com.jtrimble777.common.SymbolTable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+A relocatable object: the text and data of one source file laid out as if it were loaded alone,
+the symbols it defines, and a relocation for every instruction that references a label. The words
+of a relocated instruction hold its encoding with labels as resolved inside the object, 0 for
+labels it does not define, so the linker re-encodes the instruction once the final values are
+known.
+
+Symbols are functions (value is the first word of the function in the text) or data labels
+(value is the byte offset in the data); syscall names are constants and never relocated.
+
+File format: magic, version, text length and words, data length, initialized data length and
+bytes, the symbols as name, kind (T or D), value and size, the referenced names, then per
+relocation the first word of the instruction, the instruction name, its operands, and the
+operands that name a label as (operand, name) pairs.
+ */
+public class ObjectFile {
+  private static final int MAGIC = 0x53414C4F;
+  private static final int VERSION = 2;
+
+  final int[] text;
+  // Bytes reserved at the end of the data need not be written, so length may exceed data.length
+  final byte[] data;
+  final int dataLength;
+
+  final String[] symbolNames;
+  final char[] symbolKinds;
+  final int[] symbolValues;
+  final int[] symbolSizes;
+
+  // Labels referenced by relocations, indexed by refNames
+  final String[] names;
+
+  // The operands of relocation r are operands[operandStart[r] .. operandStart[r + 1]) and those
+  // naming a label are refOperands[refStart[r] .. refStart[r + 1]), relative to the first
+  final int[] relocWords;
+  final InstructionSet[] relocInstructions;
+  final int[] operandStart;
+  final int[] operands;
+  final int[] refStart;
+  final int[] refOperands;
+  final int[] refNames;
+
+  ObjectFile(int[] text, byte[] data, int dataLength, String[] symbolNames, char[] symbolKinds,
+      int[] symbolValues, int[] symbolSizes, String[] names, int[] relocWords,
+      InstructionSet[] relocInstructions, int[] operandStart, int[] operands, int[] refStart,
+      int[] refOperands, int[] refNames) {
+    this.text = text;
+    this.data = data;
+    this.dataLength = dataLength;
+    this.symbolNames = symbolNames;
+    this.symbolKinds = symbolKinds;
+    this.symbolValues = symbolValues;
+    this.symbolSizes = symbolSizes;
+    this.names = names;
+    this.relocWords = relocWords;
+    this.relocInstructions = relocInstructions;
+    this.operandStart = operandStart;
+    this.operands = operands;
+    this.refStart = refStart;
+    this.refOperands = refOperands;
+    this.refNames = refNames;
+  }
+
+  public int getTextLength() {
+    return text.length;
+  }
+
+  public int getDataLength() {
+    return dataLength;
+  }
+
+  public int getRelocationCount() {
+    return relocWords.length;
+  }
+
+  // True if the object defines a function or data label with this name
+  public boolean defines(String name) {
+    for (String symbol : symbolNames) {
+      if (symbol.equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public static ObjectFile read(File src) throws IOException {
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(src)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException(src + " is not a relocatable object");
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException(src + " was written by object format version " + version
+            + ", expected " + VERSION);
+      }
+
+      int[] text = readInts(in);
+      int dataLength = in.readInt();
+      byte[] data = new byte[in.readInt()];
+      in.readFully(data);
+
+      int symbolCount = in.readInt();
+      String[] symbolNames = new String[symbolCount];
+      char[] symbolKinds = new char[symbolCount];
+      int[] symbolValues = new int[symbolCount];
+      int[] symbolSizes = new int[symbolCount];
+      for (int s = 0; s < symbolCount; s++) {
+        symbolNames[s] = in.readUTF();
+        symbolKinds[s] = (char) in.readByte();
+        symbolValues[s] = in.readInt();
+        symbolSizes[s] = in.readInt();
+        if (symbolKinds[s] != SymbolTable.TEXT && symbolKinds[s] != SymbolTable.DATA) {
+          throw new IOException("Symbol " + symbolNames[s] + " in " + src + " has unknown kind "
+              + symbolKinds[s]);
+        }
+      }
+
+      String[] names = new String[in.readInt()];
+      for (int n = 0; n < names.length; n++) {
+        names[n] = in.readUTF();
+      }
+
+      int count = in.readInt();
+      int[] relocWords = new int[count];
+      InstructionSet[] relocInstructions = new InstructionSet[count];
+      int[] operandStart = new int[count + 1];
+      int[] refStart = new int[count + 1];
+      IntList operands = new IntList();
+      IntList refOperands = new IntList();
+      IntList refNames = new IntList();
+      for (int r = 0; r < count; r++) {
+        relocWords[r] = in.readInt();
+        String instr = in.readUTF();
+        relocInstructions[r] = InstructionSet.match(instr);
+        if (relocInstructions[r] == null) {
+          throw new IOException("Relocation in " + src + " has unknown instruction " + instr);
+        }
+        int operandCount = in.readUnsignedByte();
+        for (int o = 0; o < operandCount; o++) {
+          operands.add(in.readInt());
+        }
+        operandStart[r + 1] = operands.size;
+
+        int refCount = in.readUnsignedByte();
+        for (int f = 0; f < refCount; f++) {
+          int operand = in.readUnsignedByte();
+          int name = in.readInt();
+          if (operand >= operandCount || name < 0 || name >= names.length) {
+            throw new IOException("Relocation in " + src + " is malformed");
+          }
+          refOperands.add(operand);
+          refNames.add(name);
+        }
+        refStart[r + 1] = refOperands.size;
+      }
+
+      return new ObjectFile(text, data, dataLength, symbolNames, symbolKinds, symbolValues,
+          symbolSizes, names, relocWords, relocInstructions, operandStart, operands.toArray(),
+          refStart, refOperands.toArray(), refNames.toArray());
+    }
+  }
+
+  public void write(File dest) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(dest)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      writeInts(out, text);
+      out.writeInt(dataLength);
+      out.writeInt(data.length);
+      out.write(data);
+
+      out.writeInt(symbolNames.length);
+      for (int s = 0; s < symbolNames.length; s++) {
+        out.writeUTF(symbolNames[s]);
+        out.writeByte(symbolKinds[s]);
+        out.writeInt(symbolValues[s]);
+        out.writeInt(symbolSizes[s]);
+      }
+
+      out.writeInt(names.length);
+      for (String name : names) {
+        out.writeUTF(name);
+      }
+
+      out.writeInt(relocWords.length);
+      for (int r = 0; r < relocWords.length; r++) {
+        out.writeInt(relocWords[r]);
+        out.writeUTF(relocInstructions[r].name());
+        out.writeByte(operandStart[r + 1] - operandStart[r]);
+        for (int o = operandStart[r]; o < operandStart[r + 1]; o++) {
+          out.writeInt(operands[o]);
+        }
+        out.writeByte(refStart[r + 1] - refStart[r]);
+        for (int f = refStart[r]; f < refStart[r + 1]; f++) {
+          out.writeByte(refOperands[f]);
+          out.writeInt(refNames[f]);
+        }
+      }
+    }
+  }
+
+  private static int[] readInts(DataInputStream in) throws IOException {
+    int[] values = new int[in.readInt()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = in.readInt();
+    }
+    return values;
+  }
+
+  private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+    out.writeInt(values.length);
+    for (int value : values) {
+      out.writeInt(value);
+    }
+  }
+
+  // Growable int array for building the flat relocation arrays
+  static class IntList {
+    int[] values = new int[16];
+    int size;
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
@@ -0,0 +1,190 @@
+package com.jtrimble777.assembler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+On-disk cache of encoded function segments, keyed by segment name. An entry applies only while
+the segment's source hashes the same. If every label it references also still resolves to the
+same address the words are reused as they are, otherwise just the instructions referencing labels
+are encoded again and patched in.
+
+File format: magic, version, entry count, then per entry the name, the 32 byte source hash, the
+referenced labels with their values, the first word of each instruction, and the encoded words.
+ */
+public class SegmentCache {
+  private static final int MAGIC = 0x53414C43;
+  private static final int VERSION = 6;
+  private static final int HASH_LENGTH = 32;
+
+  private final File file;
+  private final Map<String, Entry> entries;
+  private int hits = 0;
+  private int patches = 0;
+  private int misses = 0;
+
+  public SegmentCache(File file) {
+    this.file = file;
+    this.entries = new HashMap<>();
+  }
+
+  public static SegmentCache open(File file) throws IOException {
+    SegmentCache cache = new SegmentCache(file);
+    if (!file.exists()) {
+      return cache;
+    }
+
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        // Written by another version, start over
+        return cache;
+      }
+
+      int count = in.readInt();
+      for (int e = 0; e < count; e++) {
+        String name = in.readUTF();
+        byte[] hash = new byte[HASH_LENGTH];
+        in.readFully(hash);
+
+        String[] deps = new String[in.readInt()];
+        int[] values = new int[deps.length];
+        for (int d = 0; d < deps.length; d++) {
+          deps[d] = in.readUTF();
+          values[d] = in.readInt();
+        }
+
+        int[] wordStart = readInts(in);
+        int[] code = readInts(in);
+        cache.entries.put(name, new Entry(hash, deps, values, wordStart, code));
+      }
+    }
+    return cache;
+  }
+
+  public void save() throws IOException {
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(entries.size());
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+        Entry entry = e.getValue();
+        out.writeUTF(e.getKey());
+        out.write(entry.hash);
+        out.writeInt(entry.deps.length);
+        for (int d = 0; d < entry.deps.length; d++) {
+          out.writeUTF(entry.deps[d]);
+          out.writeInt(entry.values[d]);
+        }
+        writeInts(out, entry.wordStart);
+        writeInts(out, entry.code);
+      }
+    }
+  }
+
+  private static int[] readInts(DataInputStream in) throws IOException {
+    int[] values = new int[in.readInt()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = in.readInt();
+    }
+    return values;
+  }
+
+  private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+    out.writeInt(values.length);
+    for (int value : values) {
+      out.writeInt(value);
+    }
+  }
+
+  // The entry for this exact segment source, or null if it has to be encoded from scratch
+  synchronized Entry find(String name, byte[] hash) {
+    Entry entry = entries.get(name);
+    if (entry == null || !Arrays.equals(entry.hash, hash)) {
+      misses++;
+      return null;
+    }
+    return entry;
+  }
+
+  synchronized void store(String name, Entry entry) {
+    entries.put(name, entry);
+  }
+
+  synchronized void recordHit() {
+    hits++;
+  }
+
+  synchronized void recordPatch() {
+    patches++;
+  }
+
+  // Drops entries for segments that are no longer in the source
+  synchronized void retain(Iterable<String> names) {
+    Map<String, Entry> kept = new HashMap<>();
+    for (String name : names) {
+      Entry entry = entries.get(name);
+      if (entry != null) {
+        kept.put(name, entry);
+      }
+    }
+    entries.clear();
+    entries.putAll(kept);
+  }
+
+  public int getHits() {
+    return hits;
+  }
+
+  public int getPatches() {
+    return patches;
+  }
+
+  public int getMisses() {
+    return misses;
+  }
+
+  static class Entry {
+    final byte[] hash;
+    final String[] deps;
+    final int[] values;
+    final int[] wordStart;
+    final int[] code;
+
+    Entry(byte[] hash, String[] deps, int[] values, int[] wordStart, int[] code) {
+      this.hash = hash;
+      this.deps = deps;
+      this.values = values;
+      this.wordStart = wordStart;
+      this.code = code;
+    }
+
+    boolean resolvesSame(Map<String, Integer> labels) {
+      for (int d = 0; d < deps.length; d++) {
+        Integer value = labels.get(deps[d]);
+        if (value == null || value != values[d]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    Entry withDependencies(Map<String, Integer> labels, int[] patched) {
+      int[] current = new int[deps.length];
+      for (int d = 0; d < deps.length; d++) {
+        current[d] = labels.get(deps[d]);
+      }
+      return new Entry(hash, deps, current, wordStart, patched);
+    }
+  }
+}
@@ -1,533 +1,396 @@
 package com.jtrimble777.common;
 
 import static com.jtrimble777.common.InstructionType.*;
-import static com.jtrimble777.common.InstructionType.InstructionComponent;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.function.Function;
-import java.util.stream.Collectors;
 
-public enum InstructionSet {
+/*
+Every instruction, base or pseudo, is compiled once into a template: the words it expands to
+with all constant fields already encoded, plus a list of patches that place each operand into
+its field. Encoding an instruction is then a copy of the template and one validated shift and
+mask per operand.
 
-  LD(ITYPE, wrap("LD", "Dest Reg", "", "", "Mem Addr", AE_IVR(1, false))),
-  LR(RTYPE, wrap("LR", "Addr Reg", "", "Dest Reg", "", AE_RAC(0))),
-  ADD(RTYPE, wrap("ADD", "Reg A", "Reg B", "Dest Reg", "", AE_RABC(3))),
-  ADI(ITYPE, wrap("ADI", "Src Reg", "", "Dest Reg", "Src Val", AE_IRVR(4, false))),
-  ADS(RTYPE, wrap("ADS", "Reg A", "", "Dest Reg", "Value", AE_IRVR(5, true))),
-  LRO(PSEUDO, 2, outerWrap("LRO", (args) -> List.of(
-      ADI.encode(new String[]{args[0], args[1], "7"}).get(0),
-      LR.encode("7", args[2]).get(0)
-  ))),
-  SV(ITYPE, wrap("SV", "Src Reg", "", "", "Mem Addr", AE_IRV(2, false))),
-  SVR(RTYPE, wrap("SVR", "Src Reg", "", "Dest Reg", "", AE_RAC(1))),
-  SI(PSEUDO, 2, outerWrap("SI", (args) -> pseudo(
-      ADI.encode("0", args[0], "7"),
-      SV.encode("7", args[1])
-  ))),
-  SIR(PSEUDO, 2, outerWrap("SIR", args -> pseudo(
-      ADI.encode("0", args[0], "7"),
-      SVR.encode("7", args[1])
-  ))),
-  MV(PSEUDO, 1, outerWrap("MV", args -> pseudo(
-      ADD.encode("0", args[0], args[1])
-  ))),
-  MPC(RTYPE, wrap("MPC", "", "", "Dest Reg", "", AE_RC(2))),
-  LUI(ITYPE, wrap("LUI", "", "", "Dest Reg", "Value", AE_IVR(3, false))),
-  LI(PSEUDO, 2, outerWrap("LI", (args) -> ADI.encode(new String[]{"0", args[0], args[1]}))),
-  NEG(RTYPE, wrap("NEG", "Src Reg", "", "Dest Reg", "", AE_RAC(4))),
-  NGI(PSEUDO, 2, outerWrap("NGI", (args) -> pseudo(
-      ADI.encode("0", args[0], "7"),
-      NEG.encode("7", args[1])
-  ))),
-  SUB(PSEUDO, 4, outerWrap("SUB", args -> pseudo(
-      ADD.encode("0", args[1], "7"),
-      NEG.encode("7", "7"),
-      ADI.encode("7", "1", "7"),
-      ADD.encode(args[0], "7", args[2])
-  ))),
-  SBI(PSEUDO, 4, outerWrap("SBI", args -> pseudo(
-      ADI.encode("0", args[1], "7"),
-      NEG.encode("7", "7"),
-      ADI.encode("7", "1", "7"),
-      ADD.encode(args[0], "7", args[2])
-  ))),
-  SBS(PSEUDO, 4, outerWrap("SBI", args -> pseudo(
-      ADS.encode("0", args[1], "7"),
-      NEG.encode("7", "7"),
-      ADI.encode("7", "1", "7"),
-      ADD.encode(args[0], "7", args[2])
-  ))),
-  AND(RTYPE, wrap("AND", "Reg A", "Reg B", "Dest Reg", "", AE_RABC(5))),
-  ANI(PSEUDO, 2, outerWrap("ANI", (args) -> pseudo(
-      ADI.encode("0", args[1], "7"),
-      AND.encode("7", args[0], args[2])
-  ))),
-  OR(RTYPE, wrap("OR", "Reg A", "Reg B", "Dest Reg", "", AE_RABC(6))),
-  ORI(PSEUDO, 2, outerWrap("ORI", (args) -> pseudo(
-      ADI.encode("0", args[1], "7"),
-      OR.encode("7", args[0], args[2])
-  ))),
-  MUL(RTYPE, wrap("MUL", "Reg A", "Reg B", "", "", AE_RAB(7))),
-  MLI(ITYPE, 2, outerWrap("MLI", (args) -> pseudo(
-      ADI.encode("0", args[1], "7"),
-      MUL.encode("7", args[0])
-  ))),
-  DIV(RTYPE, wrap("DIV", "Reg A", "Reg B", "", "", AE_RAB(8))),
-  DVI(PSEUDO, 2, outerWrap("DVI", (args) -> pseudo(
-      ADI.encode("0", args[1], "7"),
-      DIV.encode(args[0], "7")
-  ))),
-  SLL(RTYPE, wrap("SLL", "Src Reg", "", "Dest Reg", "", AE_RAC(9))),
-  SRL(RTYPE, wrap("SRL", "Src Reg", "", "Dest Reg", "", AE_RAC(10))),
-  SRA(RTYPE, wrap("SRA", "Src Reg", "", "Dest Reg", "", AE_RAC(11))),
-  CMP(RTYPE, wrap("CMP", "Reg A", "Reg B", "Dest Reg", "", AE_RABC(12))),
-  LT(RTYPE, wrap("LT", "Reg A", "Reg B", "Dest Reg", "", AE_RABC(13))),
-  PSH(PSEUDO, 2, outerWrap("PSH", (args) -> pseudo(
-      ADS.encode("25", "-4", "25"),
-      SVR.encode(args[0], "25")
-  ))),
-  PSI(PSEUDO, 2, outerWrap("PSI", (args) -> pseudo(
-      ADI.encode("25", "-4", "25"),
-      SIR.encode(args[0], "25")
-  ))),
-  POP(PSEUDO, 2, outerWrap("POP", (args) -> pseudo(
-      LR.encode("25", args[0]),
-      ADI.encode("25", "4", "25")
-  ))),
-  JT(STYPE, wrap("JT", "", "", "", "Dest", AE_SV(8, false))),
-  JR(STYPE, wrap("JR", "Dest", "", "", "", AE_SR(9))),
-  JIZ(STYPE, wrap("JIZ", "Cmp Reg", "", "", "Dest", AE_SRV(10, false))),
-  JNZ(STYPE, wrap("JNZ", "Cmp Reg", "", "", "Dest", AE_SRV(11, false))),
-  JRZ(RTYPE, wrap("JRZ", "Cmp Reg", "Dest", "", "", AE_RAC(14))),
-  JRN(RTYPE, wrap("JRN", "Cmp Reg", "Dest", "", "", AE_RAC(15))),
-  JAL(PSEUDO, 3, outerWrap("JAL", (args) -> pseudo(
-      MPC.encode("27"),
-      ADI.encode("27", "4", "27"),
-      JT.encode(args[0])
-  ))),
-  JRL(PSEUDO, 3, outerWrap("JRL", (args) -> pseudo(
-      MPC.encode("27"),
-      ADI.encode("27", "4", "27"),
-      JR.encode(args[0])
-  ))),
-  JZL(PSEUDO, 3, outerWrap("JZL", (args) -> pseudo(
-      MPC.encode("27"),
-      ADI.encode("27", "4", "27"),
-      JIZ.encode(args[0], args[1])
-  ))),
-  JXL(PSEUDO, 3, outerWrap("JXL", (args) -> pseudo(
-      MPC.encode("27"),
-      ADI.encode("27", "4", "27"),
-      JRZ.encode(args[0], args[1])
-  ))),
-  BIZ(PSEUDO, 3, outerWrap("BIZ", (args) -> pseudo(
-      MPC.encode("7"),
-      ADI.encode("7", args[1], "7"),
-      JRZ.encode(args[1], "7")
-  ))),
-  BRZ(PSEUDO, 3, outerWrap("BRZ", (args) -> pseudo(
-      MPC.encode("7"),
-      ADD.encode("7", args[1], "7"),
-      JRZ.encode(args[1], "7")
-  ))),
-  BZL(PSEUDO, 3, outerWrap("BZL", (args) -> pseudo(
-      MPC.encode("27"),
-      ADI.encode("27", "4", "27"),
-      BIZ.encode(args[0], args[1])
-  ))),
-  BRL(PSEUDO, 3, outerWrap("BRL", (args) -> pseudo(
-      MPC.encode("27"),
-      ADI.encode("27", "4", "27"),
-      BRZ.encode(args[0], args[1])
-  ))),
-  RET(PSEUDO, outerWrap("RET", (args) -> JR.encode("27"))),
-  NO(PSEUDO, outerWrap("NO", (args) -> SLL.encode("0", "0"))),
-  SYS(PSEUDO, 8, /*outerWrap("SYS", */(args) -> pseudo(
-      ADI.encode("0", args[0], "7"),
-      MLI.encode("7", "4"),
-      ADI.encode("0", "29", "7"),
-      LUI.encode(""+(MemoryStructure.OS_TABLE >> 16), "7"),
-      ADI.encode("7", ""+(MemoryStructure.OS_TABLE % 65536), "7"),
-      LR.encode("7", "8"),
-      MPC.encode("27"),
-      ADI.encode("27", "4", "27"),
-      JR.encode("8")
-  )/*)*/);
-
-  private InstructionType type;
-  private AEncoder translator;
-  private int instructionLength = 1;
-
-  InstructionSet(InstructionType type, AEncoder translator) {
-    this.type = type;
-    this.translator = translator;
-  }
+Operands are given in source order as ints: register indices, immediates, or label values.
+ */
+public enum InstructionSet {
 
-  InstructionSet(InstructionType type, int ic, AEncoder translator) {
+  LD(ITYPE, 1, uimm("Mem Addr"), ra("Dest Reg")),
+  LR(RTYPE, 0, ra("Addr Reg"), rc("Dest Reg")),
+  ADD(RTYPE, 3, ra("Reg A"), rb("Reg B"), rc("Dest Reg")),
+  ADI(ITYPE, 4, ra("Src Reg"), uimm("Src Val"), rb("Dest Reg")),
+  ADS(ITYPE, 5, ra("Reg A"), simm("Value"), rb("Dest Reg")),
+  LRO(
+      step(ADI, arg(0), arg(1), 7),
+      step(LR, 7, arg(2))
+  ),
+  SV(ITYPE, 2, ra("Src Reg"), uimm("Mem Addr")),
+  SVR(RTYPE, 1, ra("Src Reg"), rc("Dest Reg")),
+  SI(
+      step(ADI, 0, arg(0), 7),
+      step(SV, 7, arg(1))
+  ),
+  SIR(
+      step(ADI, 0, arg(0), 7),
+      step(SVR, 7, arg(1))
+  ),
+  MV(
+      step(ADD, 0, arg(0), arg(1))
+  ),
+  MPC(RTYPE, 2, rc("Dest Reg")),
+  LUI(ITYPE, 3, uimm("Value"), ra("Dest Reg")),
+  LI(
+      step(ADI, 0, arg(0), arg(1))
+  ),
+  NEG(RTYPE, 4, ra("Src Reg"), rc("Dest Reg")),
+  NGI(
+      step(ADI, 0, arg(0), 7),
+      step(NEG, 7, arg(1))
+  ),
+  SUB(
+      step(ADD, 0, arg(1), 7),
+      step(NEG, 7, 7),
+      step(ADI, 7, 1, 7),
+      step(ADD, arg(0), 7, arg(2))
+  ),
+  SBI(
+      step(ADI, 0, arg(1), 7),
+      step(NEG, 7, 7),
+      step(ADI, 7, 1, 7),
+      step(ADD, arg(0), 7, arg(2))
+  ),
+  SBS(
+      step(ADS, 0, arg(1), 7),
+      step(NEG, 7, 7),
+      step(ADI, 7, 1, 7),
+      step(ADD, arg(0), 7, arg(2))
+  ),
+  AND(RTYPE, 5, ra("Reg A"), rb("Reg B"), rc("Dest Reg")),
+  ANI(
+      step(ADI, 0, arg(1), 7),
+      step(AND, 7, arg(0), arg(2))
+  ),
+  OR(RTYPE, 6, ra("Reg A"), rb("Reg B"), rc("Dest Reg")),
+  ORI(
+      step(ADI, 0, arg(1), 7),
+      step(OR, 7, arg(0), arg(2))
+  ),
+  MUL(RTYPE, 7, ra("Reg A"), rb("Reg B")),
+  MLI(
+      step(ADI, 0, arg(1), 7),
+      step(MUL, 7, arg(0))
+  ),
+  DIV(RTYPE, 8, ra("Reg A"), rb("Reg B")),
+  DVI(
+      step(ADI, 0, arg(1), 7),
+      step(DIV, arg(0), 7)
+  ),
+  SLL(RTYPE, 9, ra("Src Reg"), rc("Dest Reg")),
+  SRL(RTYPE, 10, ra("Src Reg"), rc("Dest Reg")),
+  SRA(RTYPE, 11, ra("Src Reg"), rc("Dest Reg")),
+  CMP(RTYPE, 12, ra("Reg A"), rb("Reg B"), rc("Dest Reg")),
+  LT(RTYPE, 13, ra("Reg A"), rb("Reg B"), rc("Dest Reg")),
+  PSH(
+      step(ADS, 25, -4, 25),
+      step(SVR, arg(0), 25)
+  ),
+  PSI(
+      step(ADS, 25, -4, 25),
+      step(SIR, arg(0), 25)
+  ),
+  POP(
+      step(LR, 25, arg(0)),
+      step(ADI, 25, 4, 25)
+  ),
+  JT(STYPE, 8, uimm23("Dest")),
+  JR(STYPE, 9, ra("Dest")),
+  JIZ(STYPE, 10, ra("Cmp Reg"), uimm23("Dest")),
+  JNZ(STYPE, 11, ra("Cmp Reg"), uimm23("Dest")),
+  JRZ(RTYPE, 14, ra("Cmp Reg"), rc("Dest")),
+  JRN(RTYPE, 15, ra("Cmp Reg"), rc("Dest")),
+  // Runs a syscall on the host machine; SYS is lowered to it by Assembler.setTrapSyscalls
+  TRAP(STYPE, 12, uimm23("Syscall")),
+  // MPC reads the address of the word after it, so calls add 8 to link past their own jump, and
+  // BZL and BRL add 16 to link past their 3-word branch
+  JAL(
+      step(MPC, 27),
+      step(ADI, 27, 8, 27),
+      step(JT, arg(0))
+  ),
+  JRL(
+      step(MPC, 27),
+      step(ADI, 27, 8, 27),
+      step(JR, arg(0))
+  ),
+  JZL(
+      step(MPC, 27),
+      step(ADI, 27, 8, 27),
+      step(JIZ, arg(0), arg(1))
+  ),
+  JXL(
+      step(MPC, 27),
+      step(ADI, 27, 8, 27),
+      step(JRZ, arg(0), arg(1))
+  ),
+  // Branches jump to the word after their MPC plus an offset in bytes. For BIZ and BZL the
+  // assembler takes the offset in source lines counted from the branch and converts it; the
+  // register offset of BRZ and BRL is used as it is
+  BIZ(
+      step(MPC, 7),
+      step(ADI, 7, arg(1), 7),
+      step(JRZ, arg(0), 7)
+  ),
+  BRZ(
+      step(MPC, 7),
+      step(ADD, 7, arg(1), 7),
+      step(JRZ, arg(0), 7)
+  ),
+  BZL(
+      step(MPC, 27),
+      step(ADI, 27, 16, 27),
+      step(BIZ, arg(0), arg(1))
+  ),
+  BRL(
+      step(MPC, 27),
+      step(ADI, 27, 16, 27),
+      step(BRZ, arg(0), arg(1))
+  ),
+  RET(
+      step(JR, 27)
+  ),
+  NO(
+      step(SLL, 0, 0)
+  ),
+  SYS(
+      step(ADI, 0, arg(0), 7),
+      step(ADD, 7, 7, 7),
+      step(ADD, 7, 7, 7),
+      step(LUI, MemoryStructure.OS_TABLE >> 16, 8),
+      step(ADI, 8, MemoryStructure.OS_TABLE % 65536, 8),
+      step(ADD, 7, 8, 7),
+      step(LR, 7, 8),
+      step(MPC, 27),
+      step(ADI, 27, 8, 27),
+      step(JR, 8)
+  );
+
+  // Operand fields
+  private static final int REG_A = 0;
+  private static final int REG_B = 1;
+  private static final int REG_C = 2;
+  private static final int IMM = 3;
+  private static final int SIMM = 4;
+  private static final int BIG_IMM = 5;
+
+  // Marks a step operand as a reference to an operand of the pseudo instruction; literal
+  // operands are plain ints, so their upper half is always all zeroes or all ones
+  private static final long ARG = 1L << 32;
+
+  private final InstructionType type;
+  private final int[] template;
+  private final int operandCount;
+  // Parallel arrays, one entry per patch: the word, the field, and the operand placed there
+  private final int[] patchWords;
+  private final int[] patchFields;
+  private final int[] patchOperands;
+  private final String[] patchNames;
+
+  InstructionSet(InstructionType type, int code, Operand... operands) {
     this.type = type;
-    this.translator = translator;
-  }
-
-  public List<Integer> encode(String... args) {
-    return this.translator.apply(args);
-  }
-
-  public int trueSize() {
-    return instructionLength;
-  }
-
-  private static void assureValidRegister(int r) {
-    if (r < 0 || r > 31) {
-      throw new IllegalArgumentException("The value at position $R was not a valid register index");
+    this.template = new int[]{type == RTYPE ? code << 8 : code << 28};
+    this.operandCount = operands.length;
+    this.patchWords = new int[operands.length];
+    this.patchFields = new int[operands.length];
+    this.patchOperands = new int[operands.length];
+    this.patchNames = new String[operands.length];
+    for (int i = 0; i < operands.length; i++) {
+      patchFields[i] = operands[i].field;
+      patchOperands[i] = i;
+      patchNames[i] = operands[i].name;
     }
   }
 
-  private static void assureValidImmediate(int v, boolean signed) {
-    if (v > (signed ? 32767 : 65535) || v < (signed ? -32768 : 0)) {
-      String ss = signed ? "signed" : "unsigned";
-      throw new IllegalArgumentException("The value at position $V was not a valid "+ss+" immediate");
+  // Pseudo instructions expand nested pseudos fully, so every step contributes all of its words
+  InstructionSet(Step... steps) {
+    this.type = PSEUDO;
+
+    List<Integer> words = new ArrayList<>();
+    List<int[]> patches = new ArrayList<>();
+    List<String> names = new ArrayList<>();
+    int count = 0;
+    for (Step step : steps) {
+      InstructionSet sub = step.instruction;
+      if (step.operands.length != sub.operandCount) {
+        throw new IllegalStateException(String.format("%s expects %d operands but was given %d",
+            sub.name(), sub.operandCount, step.operands.length));
+      }
+
+      int base = words.size();
+      int[] subWords = sub.template.clone();
+      for (int p = 0; p < sub.patchWords.length; p++) {
+        long source = step.operands[sub.patchOperands[p]];
+        if (source >> 32 == 1) {
+          int arg = (int) source;
+          patches.add(new int[]{base + sub.patchWords[p], sub.patchFields[p], arg});
+          names.add(sub.patchNames[p]);
+          count = Math.max(count, arg + 1);
+        } else {
+          int w = sub.patchWords[p];
+          subWords[w] = place(subWords[w], sub.patchFields[p], (int) source,
+              sub.patchNames[p], sub.name());
+        }
+      }
+      for (int word : subWords) {
+        words.add(word);
+      }
     }
-  }
 
-  private static void assureValidBigImmediate(int v, boolean signed) {
-    if (v > (signed ? 4194303 : 8388607) || v < (signed ? -4194304 : 0)) {
-      String ss = signed ? "signed" : "unsigned";
-      throw new IllegalArgumentException("The value at position $V was not a valid "+ss+" immediate");
+    this.template = words.stream().mapToInt(Integer::intValue).toArray();
+    this.operandCount = count;
+    this.patchWords = new int[patches.size()];
+    this.patchFields = new int[patches.size()];
+    this.patchOperands = new int[patches.size()];
+    this.patchNames = names.toArray(new String[0]);
+    for (int p = 0; p < patches.size(); p++) {
+      patchWords[p] = patches.get(p)[0];
+      patchFields[p] = patches.get(p)[1];
+      patchOperands[p] = patches.get(p)[2];
     }
   }
 
-  private static AEncoder AE_IVR(int instr, boolean signed) {return (args) -> {
-    int v, r;
-    try {
-      v = Integer.parseInt(args[0]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $V was not a number");
-    }
-    try {
-      r = Integer.parseInt(args[1]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $RA was not a number");
+  /*
+  Writes the words for this instruction into out starting at pos, taking the operands from
+  operands[from .. from + count). Returns the number of words written, which is always trueSize().
+   */
+  public int encode(int[] operands, int from, int count, int[] out, int pos) {
+    if (count != operandCount) {
+      throw new IllegalArgumentException(String.format("Error parsing %s: Expected %d arguments"
+          + " but found %d", name(), operandCount, count));
     }
 
-    assureValidRegister(r);
-    assureValidImmediate(v, signed);
-
-    Map<InstructionComponent, Integer> comps = Map.of(
-        InstructionComponent.INSTRUCTION, instr,
-        InstructionComponent.REGISTER_A, r,
-        InstructionComponent.REGISTER_B, 0,
-        InstructionComponent.IMMEDIATE, v
-    );
-
-    return Collections.singletonList(ITYPE.encode(comps));
-  };}
-
-  private static AEncoder AE_IRV(int instr, boolean signed) { return (args) -> {
-    int v, r;
-    try {
-      v = Integer.parseInt(args[1]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $V was not a number");
-    }
-    try {
-      r = Integer.parseInt(args[0]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $RA was not a number");
+    System.arraycopy(template, 0, out, pos, template.length);
+    for (int p = 0; p < patchWords.length; p++) {
+      int w = pos + patchWords[p];
+      out[w] = place(out[w], patchFields[p], operands[from + patchOperands[p]], patchNames[p],
+          name());
     }
+    return template.length;
+  }
 
-    assureValidRegister(r);
-    assureValidImmediate(v, signed);
-
-    Map<InstructionComponent, Integer> comps = Map.of(
-        InstructionComponent.INSTRUCTION, instr,
-        InstructionComponent.REGISTER_A, r,
-        InstructionComponent.REGISTER_B, 0,
-        InstructionComponent.IMMEDIATE, v
-    );
-
-    return Collections.singletonList(ITYPE.encode(comps));
-  };}
-
-  private static AEncoder AE_IRVR(int instr, boolean signed) { return (args) -> {
-    int v, r, r2;
-    try {
-      v = Integer.parseInt(args[1]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $V was not a number");
-    }
-    try {
-      r = Integer.parseInt(args[0]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $RA was not a number");
-    }
-    try {
-      r2 = Integer.parseInt(args[2]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $RB was not a number");
-    }
+  public int[] encode(int... operands) {
+    int[] out = new int[template.length];
+    encode(operands, 0, operands.length, out, 0);
+    return out;
+  }
 
-    assureValidRegister(r);
-    assureValidRegister(r2);
-    assureValidImmediate(v, signed);
-
-    Map<InstructionComponent, Integer> comps = Map.of(
-        InstructionComponent.INSTRUCTION, instr,
-        InstructionComponent.REGISTER_A, r,
-        InstructionComponent.REGISTER_B, r2,
-        InstructionComponent.IMMEDIATE, v
-    );
-
-    return Collections.singletonList(ITYPE.encode(comps));
-  };}
-
-  private static AEncoder AE_RAB(int instr) { return (args) -> {
-    int ra, rb;
-    try {
-      ra = Integer.parseInt(args[0]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $RA was not a number");
-    }
-    try {
-      rb = Integer.parseInt(args[1]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $RB was not a number");
-    }
+  public int trueSize() {
+    return template.length;
+  }
 
-    assureValidRegister(ra);
-    assureValidRegister(rb);
-
-    Map<InstructionComponent, Integer> comps = Map.of(
-        InstructionComponent.INSTRUCTION, instr,
-        InstructionComponent.REGISTER_A, ra,
-        InstructionComponent.REGISTER_B, rb,
-        InstructionComponent.DEST_REGISTER, 0
-    );
-
-    return Collections.singletonList(RTYPE.encode(comps));
-  };}
-
-  private static AEncoder AE_RAC(int instr) { return (args) -> {
-    int ra, rc;
-    try {
-      ra = Integer.parseInt(args[0]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $RA was not a number");
-    }
-    try {
-      rc = Integer.parseInt(args[1]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $RC was not a number");
-    }
+  public InstructionType getType() {
+    return type;
+  }
 
-    assureValidRegister(ra);
-    assureValidRegister(rc);
-
-    Map<InstructionComponent, Integer> comps = Map.of(
-        InstructionComponent.INSTRUCTION, instr,
-        InstructionComponent.REGISTER_A, ra,
-        InstructionComponent.REGISTER_B, 0,
-        InstructionComponent.DEST_REGISTER, rc
-    );
-
-    return Collections.singletonList(RTYPE.encode(comps));
-  };}
-
-  private static AEncoder AE_RC(int instr) { return (args) -> {
-    int rc;
-    try {
-      rc = Integer.parseInt(args[0]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $RC was not a number");
+  private static int place(int word, int field, int value, String position, String name) {
+    switch (field) {
+      case REG_A:
+        return word | (register(value, position, name) << 23);
+      case REG_B:
+        return word | (register(value, position, name) << 18);
+      case REG_C:
+        return word | (register(value, position, name) << 13);
+      case IMM:
+        if (value < 0 || value > 65535) {
+          throw invalid(name, position, "unsigned immediate");
+        }
+        return word | value;
+      case SIMM:
+        if (value < -32768 || value > 32767) {
+          throw invalid(name, position, "signed immediate");
+        }
+        return word | (value & 0xFFFF);
+      default:
+        if (value < 0 || value > 8388607) {
+          throw invalid(name, position, "unsigned immediate");
+        }
+        return word | value;
     }
-    assureValidRegister(rc);
-
-    Map<InstructionComponent, Integer> comps = Map.of(
-        InstructionComponent.INSTRUCTION, instr,
-        InstructionComponent.REGISTER_A, 0,
-        InstructionComponent.REGISTER_B, 0,
-        InstructionComponent.DEST_REGISTER, rc
-    );
-
-    return Collections.singletonList(RTYPE.encode(comps));
-  };}
-
-  private static AEncoder AE_RABC(int instr) { return (args) -> {
-    int ra, rb, rc;
-    try {
-      ra = Integer.parseInt(args[0]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $RA was not a number");
-    }
-    try {
-      rb = Integer.parseInt(args[1]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $RB was not a number");
-    }try {
-      rc = Integer.parseInt(args[1]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $RC was not a number");
-    }
-
-
-    assureValidRegister(ra);
-    assureValidRegister(rb);
-    assureValidRegister(rc);
-
-    Map<InstructionComponent, Integer> comps = Map.of(
-        InstructionComponent.INSTRUCTION, instr,
-        InstructionComponent.REGISTER_A, ra,
-        InstructionComponent.REGISTER_B, rb,
-        InstructionComponent.DEST_REGISTER, rc
-    );
-
-    return Collections.singletonList(RTYPE.encode(comps));
-  };}
+  }
 
-  private static AEncoder AE_SV(int instr, boolean signed) { return (args) -> {
-    int v;
-    try {
-      v = Integer.parseInt(args[0]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $V was not a number");
+  private static int register(int value, String position, String name) {
+    if (value < 0 || value > 31) {
+      throw invalid(name, position, "register index");
     }
+    return value;
+  }
 
-    assureValidBigImmediate(v, signed);
-
-    Map<InstructionComponent, Integer> comps = Map.of(
-        InstructionComponent.INSTRUCTION, instr,
-        InstructionComponent.REGISTER_A, 0,
-        InstructionComponent.IMMEDIATE, v
-    );
+  private static IllegalArgumentException invalid(String name, String position, String what) {
+    return new IllegalArgumentException("Error parsing " + name + ": The value at position "
+        + position + " was not a valid " + what);
+  }
 
-    return Collections.singletonList(STYPE.encode(comps));
-  };}
+  private static Operand ra(String name) {
+    return new Operand(REG_A, name);
+  }
 
-  private static AEncoder AE_SR(int instr) { return (args) -> {
-    int r;
-    try {
-      r = Integer.parseInt(args[0]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $R was not a number");
-    }
+  private static Operand rb(String name) {
+    return new Operand(REG_B, name);
+  }
 
-    assureValidRegister(r);
+  private static Operand rc(String name) {
+    return new Operand(REG_C, name);
+  }
 
-    Map<InstructionComponent, Integer> comps = Map.of(
-        InstructionComponent.INSTRUCTION, instr,
-        InstructionComponent.REGISTER_A, r,
-        InstructionComponent.IMMEDIATE, 0
-    );
+  private static Operand uimm(String name) {
+    return new Operand(IMM, name);
+  }
 
-    return Collections.singletonList(STYPE.encode(comps));
-  };}
+  private static Operand simm(String name) {
+    return new Operand(SIMM, name);
+  }
 
-  private static AEncoder AE_SRV(int instr, boolean signed) { return (args) -> {
-    int r;
-    try {
-      r = Integer.parseInt(args[0]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $R was not a number");
-    }
-    int v;
-    try {
-      v = Integer.parseInt(args[1]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $V was not a number");
-    }
+  private static Operand uimm23(String name) {
+    return new Operand(BIG_IMM, name);
+  }
 
-    assureValidRegister(r);
-    assureValidBigImmediate(v, signed);
+  private static Step step(InstructionSet instruction, long... operands) {
+    return new Step(instruction, operands);
+  }
 
-    Map<InstructionComponent, Integer> comps = Map.of(
-        InstructionComponent.INSTRUCTION, instr,
-        InstructionComponent.REGISTER_A, r,
-        InstructionComponent.IMMEDIATE, v
-    );
+  private static long arg(int index) {
+    return ARG | index;
+  }
 
-    return Collections.singletonList(STYPE.encode(comps));
-  };}
+  private static class Operand {
+    final int field;
+    final String name;
 
-  private static AEncoder AE_SVR(int instr, boolean signed) { return (args) -> {
-    int r;
-    try {
-      r = Integer.parseInt(args[1]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $R was not a number");
+    Operand(int field, String name) {
+      this.field = field;
+      this.name = name;
     }
-    int v;
-    try {
-      v = Integer.parseInt(args[0]);
-    } catch (NumberFormatException e) {
-      throw new IllegalArgumentException("The value at position $V was not a number");
-    }
-
-    assureValidRegister(r);
-    assureValidBigImmediate(v, signed);
-
-    Map<InstructionComponent, Integer> comps = Map.of(
-        InstructionComponent.INSTRUCTION, instr,
-        InstructionComponent.REGISTER_A, r,
-        InstructionComponent.IMMEDIATE, v
-    );
-
-    return Collections.singletonList(STYPE.encode(comps));
-  };}
-
-  private static AEncoder wrap(String name, String ra, String rb, String rc, String v, AEncoder base) {
-    int acount = (ra.equals("") ? 0 : 1)
-        + (rb.equals("") ? 0 : 1)
-        + (rc.equals("") ? 0 : 1)
-        + (v.equals("") ? 0 : 1);
-
-    return (args) -> {
-      if (args.length != acount) {
-        throw new IllegalArgumentException(String.format("Error parsing %s: Expected %d arguments"
-            + " but found %d", name, acount, args.length));
-      }
-
-      try {
-        return base.apply(args);
-      } catch (IllegalArgumentException e) {
-        String msg = e.getMessage();
-        msg = msg.replaceFirst("\\$RA", ra);
-        msg = msg.replaceFirst("\\$RB", rb);
-        msg = msg.replaceFirst("\\$RC", rc);
-        msg = msg.replaceFirst("\\$V", v);
-
-        throw new IllegalArgumentException("Error parsing "+name+": "+msg);
-      }
-    };
   }
 
-  private static AEncoder outerWrap(String name, AEncoder inner) {
-    return (args) -> {
-      try {
-        return inner.apply(args);
-      } catch (IllegalArgumentException e) {
-        String msg = e.getMessage().substring(e.getMessage().indexOf(":")+2);
-        msg = "Error parsing " + name + ": " + msg;
+  private static class Step {
+    final InstructionSet instruction;
+    final long[] operands;
 
-        throw new IllegalArgumentException(msg);
-      }
-    };
+    Step(InstructionSet instruction, long[] operands) {
+      this.instruction = instruction;
+      this.operands = operands;
+    }
   }
 
-  private static List<Integer> pseudo(List<Integer>... parts) {
-    return Arrays.stream(parts).map(e -> e.get(0)).collect(Collectors.toList());
-  }
+  private static final NameTable<InstructionSet> MNEMONICS = new NameTable<>(
+      Arrays.stream(values()).map(Enum::name).toArray(String[]::new), values());
 
+  // Case-insensitive; null if key is not a mnemonic
   public static InstructionSet match(String key) {
-    try {
-      return valueOf(key.toUpperCase());
-    } catch (IllegalArgumentException | NullPointerException e) {
-      return null;
-    }
+    return MNEMONICS.get(key);
   }
-}
-
-interface AEncoder extends Function<String[], List<Integer>> {
 
+  public static InstructionSet match(String key, int from, int to) {
+    return MNEMONICS.get(key, from, to);
+  }
 }
@@ -5,10 +5,10 @@ import java.util.function.Function;
 
 public enum InstructionType {
   ITYPE((instr) -> {
-    int i = instr >> 28;
-    int a = (instr >> 23) % 32;
-    int b = (instr >> 18) % 32;
-    int v = instr % 65536;
+    int i = opcode(instr);
+    int a = regA(instr);
+    int b = regB(instr);
+    int v = imm(instr);
     return Map.of(
         InstructionComponent.INSTRUCTION, i,
         InstructionComponent.REGISTER_A, a,
@@ -22,14 +22,14 @@ public enum InstructionType {
     int b = components.get(InstructionComponent.REGISTER_B);
     int v = components.get(InstructionComponent.IMMEDIATE);
 //    System.out.println(String.format("I = %d | RA = %d | RB = %d | V = %d", i,a,b,v));
-    return (i << 28) + (a << 23) + (b << 18) + v;
+    return (i << 28) | ((a & 0x1F) << 23) | ((b & 0x1F) << 18) | (v & 0xFFFF);
   }),
 
   RTYPE((instr) -> {
-    int i = (instr >> 8) % 32;
-    int a = (instr >> 23) % 32;
-    int b = (instr >> 18) % 32;
-    int c = (instr >> 13) % 32;
+    int i = function(instr);
+    int a = regA(instr);
+    int b = regB(instr);
+    int c = regC(instr);
     return Map.of(
         InstructionComponent.INSTRUCTION, i,
         InstructionComponent.REGISTER_A, a,
@@ -42,13 +42,13 @@ public enum InstructionType {
     int a = components.get(InstructionComponent.REGISTER_A);
     int b = components.get(InstructionComponent.REGISTER_B);
     int c = components.get(InstructionComponent.DEST_REGISTER);
-    return (a << 23) + (b << 18) + (c << 13) + (i << 8);
+    return ((a & 0x1F) << 23) | ((b & 0x1F) << 18) | ((c & 0x1F) << 13) | ((i & 0x1F) << 8);
   }),
 
   STYPE((instr) -> {
-    int i = (instr >> 28) % 32;
-    int a = (instr >> 23) % 32;
-    int v = instr % 8388608;
+    int i = opcode(instr);
+    int a = regA(instr);
+    int v = bigImm(instr);
     return Map.of(
         InstructionComponent.INSTRUCTION, i,
         InstructionComponent.REGISTER_A, a,
@@ -59,7 +59,7 @@ public enum InstructionType {
     int i = components.get(InstructionComponent.INSTRUCTION);
     int a = components.get(InstructionComponent.REGISTER_A);
     int v = components.get(InstructionComponent.IMMEDIATE);
-    return (i << 28) + (a << 23) + v;
+    return (i << 28) | ((a & 0x1F) << 23) | (v & 0x7FFFFF);
   }),
 
   PSEUDO(null, null);
@@ -81,6 +81,59 @@ public enum InstructionType {
     return this.decoder.apply(inp);
   }
 
+  /*
+  Allocation free field accessors. Fields are extracted with unsigned shifts and masks so that
+  words with the top bit set (every STYPE instruction) decode the same as any other word.
+   */
+
+  // The top nibble: the ITYPE/STYPE opcode, or 0 for every RTYPE instruction
+  public static int opcode(int instr) {
+    return instr >>> 28;
+  }
+
+  // The RTYPE function field
+  public static int function(int instr) {
+    return (instr >>> 8) & 0x1F;
+  }
+
+  public static int regA(int instr) {
+    return (instr >>> 23) & 0x1F;
+  }
+
+  public static int regB(int instr) {
+    return (instr >>> 18) & 0x1F;
+  }
+
+  public static int regC(int instr) {
+    return (instr >>> 13) & 0x1F;
+  }
+
+  // The ITYPE immediate, zero extended
+  public static int imm(int instr) {
+    return instr & 0xFFFF;
+  }
+
+  // The ITYPE immediate, sign extended
+  public static int signedImm(int instr) {
+    return (short) instr;
+  }
+
+  // The 23 bit STYPE immediate, zero extended
+  public static int bigImm(int instr) {
+    return instr & 0x7FFFFF;
+  }
+
+  public static InstructionType typeOf(int instr) {
+    int op = opcode(instr);
+    if (op == 0) {
+      return RTYPE;
+    } else if (op < 8) {
+      return ITYPE;
+    } else {
+      return STYPE;
+    }
+  }
+
   public enum InstructionComponent {
     INSTRUCTION,
     REGISTER_A,
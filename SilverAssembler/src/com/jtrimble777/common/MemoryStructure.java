@@ -31,4 +31,11 @@ public class MemoryStructure {
 
   public static final int MMIO = OS_TABLE_END + 1;
   public static final int MMIO_END = MMIO + 0x100;
+
+  // Default size of a machine's address space; the layout above must fit inside it
+  public static final int MEMORY_SIZE = 0x100000;
+
+  // Everything above the default size, up to the top of the 32 bit space, is free for dynamic
+  // data on machines running on sparse memory
+  public static final int EXTENDED_DATA_BEGIN = MEMORY_SIZE;
 }
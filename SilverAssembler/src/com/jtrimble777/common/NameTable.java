@@ -0,0 +1,91 @@
+package com.jtrimble777.common;
+
+/*
+Case-insensitive lookup of a fixed set of names, used for mnemonics and register names. The table
+size is grown until every name hashes to its own slot, so a lookup is normally one hash of the
+key, one probe and at most one comparison, and a miss costs no more than a hit.
+
+When two values share a name, the first one given wins.
+ */
+public final class NameTable<T> {
+  private final String[] names;
+  private final Object[] values;
+  private final int mask;
+
+  public NameTable(String[] keys, T[] values) {
+    String[] unique = new String[keys.length];
+    Object[] uniqueValues = new Object[keys.length];
+    int count = 0;
+    for (int i = 0; i < keys.length; i++) {
+      boolean seen = false;
+      for (int u = 0; u < count && !seen; u++) {
+        seen = unique[u].equalsIgnoreCase(keys[i]);
+      }
+      if (!seen) {
+        unique[count] = keys[i];
+        uniqueValues[count] = values[i];
+        count++;
+      }
+    }
+
+    // Look for a size at which no two names share a slot, falling back to linear probing if the
+    // hashes themselves collide
+    int size = Integer.highestOneBit(Math.max(count, 1)) << 2;
+    while (size < count * 64 && collides(unique, count, size)) {
+      size <<= 1;
+    }
+
+    this.names = new String[size];
+    this.values = new Object[size];
+    this.mask = size - 1;
+    for (int i = 0; i < count; i++) {
+      int slot = hash(unique[i], 0, unique[i].length()) & mask;
+      while (this.names[slot] != null) {
+        slot = (slot + 1) & mask;
+      }
+      this.names[slot] = unique[i];
+      this.values[slot] = uniqueValues[i];
+    }
+  }
+
+  public T get(String key) {
+    return key == null ? null : get(key, 0, key.length());
+  }
+
+  // Looks up key.substring(from, to) without creating the substring
+  @SuppressWarnings("unchecked")
+  public T get(String key, int from, int to) {
+    int length = to - from;
+    for (int slot = hash(key, from, to) & mask; names[slot] != null; slot = (slot + 1) & mask) {
+      String name = names[slot];
+      if (name.length() == length && name.regionMatches(true, 0, key, from, length)) {
+        return (T) values[slot];
+      }
+    }
+    return null;
+  }
+
+  private static boolean collides(String[] names, int count, int size) {
+    boolean[] used = new boolean[size];
+    for (int i = 0; i < count; i++) {
+      int slot = hash(names[i], 0, names[i].length()) & (size - 1);
+      if (used[slot]) {
+        return true;
+      }
+      used[slot] = true;
+    }
+    return false;
+  }
+
+  private static int hash(String key, int from, int to) {
+    int h = 0;
+    for (int i = from; i < to; i++) {
+      char c = key.charAt(i);
+      if (c >= 'a' && c <= 'z') {
+        c -= 'a' - 'A';
+      }
+      h = 31 * h + c;
+    }
+    return h ^ (h >>> 7) ^ (h >>> 16);
+  }
+}
@@ -1,9 +1,11 @@
 package com.jtrimble777.common;
 
+import java.util.Arrays;
+
 public enum Register {
   NUL(0, "0"),
   RV0(1, "v0"),
-  RV1(2, "v0"),
+  RV1(2, "v1"),
   ARG0(3, "a0"),
   ARG1(4, "a1"),
   ARG2(5, "a2"),
@@ -47,13 +49,15 @@ public enum Register {
     return index;
   }
 
+  private static final NameTable<Register> NAMES = new NameTable<>(
+      Arrays.stream(values()).map(r -> r.name).toArray(String[]::new), values());
+
+  // Case-insensitive; null if name is not a register name
   public static Register match(String name) {
-    for (Register r : values()) {
-      if (r.name.equalsIgnoreCase(name)) {
-        return r;
-      }
-    }
+    return NAMES.get(name);
+  }
 
-    return null;
+  public static Register match(String name, int from, int to) {
+    return NAMES.get(name, from, to);
   }
 }
@@ -0,0 +1,122 @@
+package com.jtrimble777.common;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+Symbols of an assembled program: the functions laid out in the program text and the labels of
+the data segment, each with its absolute load address and size in bytes. The assembler writes the
+table next to the executable as <executable>.sym, one symbol per line:
+
+  <address, 8 hex digits> <T for text or D for data> <size in bytes> <name>
+ */
+public class SymbolTable {
+  public static final char TEXT = 'T';
+  public static final char DATA = 'D';
+
+  private final List<Symbol> symbols = new ArrayList<>();
+  private boolean sorted = true;
+
+  public void add(String name, char kind, int address, int size) {
+    symbols.add(new Symbol(name, kind, address, size));
+    sorted = false;
+  }
+
+  public List<Symbol> getSymbols() {
+    sort();
+    return symbols;
+  }
+
+  // The text symbol covering address, or null if the address is not inside any function
+  public Symbol lookup(int address) {
+    sort();
+    int low = 0;
+    int high = symbols.size() - 1;
+    Symbol found = null;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      Symbol symbol = symbols.get(mid);
+      if (symbol.address <= address) {
+        found = symbol;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+
+    // Data symbols never overlap the text, so the closest symbol below decides
+    if (found == null || found.kind != TEXT || address >= found.address + found.size) {
+      return null;
+    }
+    return found;
+  }
+
+  public void write(File dest) throws IOException {
+    sort();
+    try (BufferedWriter out = new BufferedWriter(new FileWriter(dest))) {
+      for (Symbol symbol : symbols) {
+        out.write(String.format("%08X %c %d %s%n", symbol.address, symbol.kind, symbol.size,
+            symbol.name));
+      }
+    }
+  }
+
+  public static SymbolTable read(File src) throws IOException {
+    SymbolTable table = new SymbolTable();
+    try (BufferedReader in = new BufferedReader(new FileReader(src))) {
+      String line;
+      int lineNum = 0;
+      while ((line = in.readLine()) != null) {
+        lineNum++;
+        if (line.isBlank()) {
+          continue;
+        }
+        String[] pts = line.strip().split(" ", 4);
+        if (pts.length != 4 || pts[1].length() != 1) {
+          throw new IOException("Malformed symbol on line " + lineNum + " of " + src);
+        }
+        try {
+          table.add(pts[3], pts[1].charAt(0), Integer.parseUnsignedInt(pts[0], 16),
+              Integer.parseInt(pts[2]));
+        } catch (NumberFormatException e) {
+          throw new IOException("Malformed symbol on line " + lineNum + " of " + src, e);
+        }
+      }
+    }
+    return table;
+  }
+
+  // The table written next to an executable, or an empty table if there is none
+  public static SymbolTable forExecutable(File executable) throws IOException {
+    File src = new File(executable.getPath() + ".sym");
+    return src.exists() ? read(src) : new SymbolTable();
+  }
+
+  private void sort() {
+    if (!sorted) {
+      symbols.sort(Comparator.comparingInt((Symbol s) -> s.address));
+      sorted = true;
+    }
+  }
+
+  public static class Symbol {
+    public final String name;
+    public final char kind;
+    public final int address;
+    public final int size;
+
+    public Symbol(String name, char kind, int address, int size) {
+      this.name = name;
+      this.kind = kind;
+      this.address = address;
+      this.size = size;
+    }
+  }
+}
@@ -14,6 +14,10 @@ public enum Syscall {
     this.index = index;
   }
 
+  public int getIndex() {
+    return index;
+  }
+
   public static Map<String, Integer> getMapping() {
     Map<String, Integer> mapping = new HashMap<>();
     for (Syscall sys : values()) {
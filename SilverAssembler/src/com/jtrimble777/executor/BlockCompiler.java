@@ -0,0 +1,711 @@
+package com.jtrimble777.executor;
+
+import static com.jtrimble777.executor.DecodeTable.*;
+
+import com.jtrimble777.common.Register;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+Optional execution tier that translates hot basic blocks of the pre-decoded program text into
+JVM bytecode. The interpreter counts how often each text slot is reached; once a slot reaches
+HOT_THRESHOLD, the straight-line run starting there (up to and including the next jump) is
+compiled into a hidden class implementing CompiledBlock, which HotSpot is then free to compile
+to native code. Blocks are dropped whenever a store touches any word they were built from.
+
+Class files are written by hand at version 50 so that no StackMapTable has to be computed; the
+split verifier falls back to type inference for that version.
+ */
+final class BlockCompiler {
+  static final int HOT_THRESHOLD = 1000;
+  private static final int MAX_BLOCK_INSTRUCTIONS = 256;
+  private static final int NOT_COMPILABLE = Integer.MIN_VALUE;
+
+  private static final int LO = Register.LO.getIndex();
+  private static final int HI = Register.HI.getIndex();
+  private static final int K0 = Register.OS0.getIndex();
+
+  private static final String MACHINE = "com/jtrimble777/executor/SALMachine";
+  private static final String BLOCK = "com/jtrimble777/executor/CompiledBlock";
+  private static final String MEMORY = "com/jtrimble777/executor/memory/GuestMemory";
+
+  private final DecodedText text;
+  final CompiledBlock[] blocks;
+  final int[] heat;
+  // Exclusive end slot of the block starting at each head, 0 where there is none
+  private final int[] blockEnds;
+  private int[] heads;
+  private int headCount;
+
+  BlockCompiler(DecodedText text) {
+    this.text = text;
+    this.blocks = new CompiledBlock[DecodedText.SLOTS];
+    this.heat = new int[DecodedText.SLOTS];
+    this.blockEnds = new int[DecodedText.SLOTS];
+    this.heads = new int[16];
+  }
+
+  // Compiled blocks hold no state of their own, so a copy can share them with the source
+  BlockCompiler(BlockCompiler source, DecodedText text) {
+    this.text = text;
+    this.blocks = source.blocks.clone();
+    this.heat = source.heat.clone();
+    this.blockEnds = source.blockEnds.clone();
+    this.heads = source.heads.clone();
+    this.headCount = source.headCount;
+  }
+
+  // Compiles the block at slot, returning null (and never trying again) if it cannot be compiled
+  CompiledBlock compile(int slot) {
+    byte[] classFile = translate(slot);
+    if (classFile == null) {
+      heat[slot] = NOT_COMPILABLE;
+      return null;
+    }
+
+    CompiledBlock block;
+    try {
+      Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+      block = (CompiledBlock) lookup
+          .findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+          .invoke();
+    } catch (Throwable e) {
+      heat[slot] = NOT_COMPILABLE;
+      return null;
+    }
+
+    blocks[slot] = block;
+    if (headCount == heads.length) {
+      heads = Arrays.copyOf(heads, headCount * 2);
+    }
+    heads[headCount++] = slot;
+    return block;
+  }
+
+  // Drops every block built from a slot in [first, last]
+  void invalidate(int first, int last) {
+    int i = 0;
+    while (i < headCount) {
+      int head = heads[i];
+      if (head <= last && blockEnds[head] > first) {
+        blocks[head] = null;
+        blockEnds[head] = 0;
+        heat[head] = 0;
+        heads[i] = heads[--headCount];
+      } else {
+        i++;
+      }
+    }
+  }
+
+  private byte[] translate(int head) {
+    ConstantPool pool = new ConstantPool();
+    Code code = new Code(pool);
+
+    int slot = head;
+    int count = 0;
+    boolean terminated = false;
+    code.position(1, DecodedText.BEGIN + (head << 2));
+    while (!terminated && slot < DecodedText.SLOTS && count < MAX_BLOCK_INSTRUCTIONS) {
+      int p = text.packed[slot];
+      if (p == DecodedText.UNDECODED || packedOp(p) == OP_ILLEGAL) {
+        break;
+      }
+
+      int op = packedOp(p);
+      int len = length(op);
+      count += len;
+      terminated = code.instruction(p, text.operands[slot], DecodedText.BEGIN + (slot << 2),
+          count);
+      slot += len;
+    }
+
+    if (count == 0) {
+      return null;
+    }
+    if (!terminated) {
+      code.returnConstant(count, DecodedText.BEGIN + (slot << 2));
+    }
+    code.faultHandler();
+
+    blockEnds[head] = slot;
+    return classFile(pool, code, "com/jtrimble777/executor/Block$"
+        + Integer.toHexString(DecodedText.BEGIN + (head << 2)));
+  }
+
+  private static byte[] classFile(ConstantPool pool, Code code, String name) {
+    int thisClass = pool.classRef(name);
+    int superClass = pool.classRef("java/lang/Object");
+    int blockInterface = pool.classRef(BLOCK);
+    int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+    int initName = pool.utf8("<init>");
+    int initDesc = pool.utf8("()V");
+    int executeName = pool.utf8("execute");
+    int executeDesc = pool.utf8("(L" + MACHINE + ";[IL" + MEMORY + ";)J");
+    int codeAttr = pool.utf8("Code");
+
+    Bytes out = new Bytes();
+    out.u4(0xCAFEBABE);
+    out.u2(0);
+    out.u2(50);
+    out.u2(pool.count);
+    out.bytes(pool.entries);
+    out.u2(0x0030); // ACC_FINAL | ACC_SUPER
+    out.u2(thisClass);
+    out.u2(superClass);
+    out.u2(1);
+    out.u2(blockInterface);
+    out.u2(0);
+
+    out.u2(2);
+    // public <init>()V
+    out.u2(0x0001);
+    out.u2(initName);
+    out.u2(initDesc);
+    out.u2(1);
+    out.u2(codeAttr);
+    out.u4(12 + 5);
+    out.u2(1);
+    out.u2(1);
+    out.u4(5);
+    out.u1(0x2A); // aload_0
+    out.u1(0xB7); // invokespecial
+    out.u2(objectInit);
+    out.u1(0xB1); // return
+    out.u2(0);
+    out.u2(0);
+
+    // public execute(SALMachine, int[], GuestMemory)J
+    out.u2(0x0001);
+    out.u2(executeName);
+    out.u2(executeDesc);
+    out.u2(1);
+    out.u2(codeAttr);
+    out.u4(12 + code.length + 8);
+    out.u2(8);
+    out.u2(10);
+    out.u4(code.length);
+    out.bytes(code);
+    // Any exception thrown by the block body goes through the fault handler
+    out.u2(1);
+    out.u2(0);
+    out.u2(code.handler);
+    out.u2(code.handler);
+    out.u2(0);
+    out.u2(0);
+
+    out.u2(0);
+    return Arrays.copyOf(out.data, out.length);
+  }
+
+  /*
+  Bytecode for the execute method. Locals: 0 this, 1 machine, 2 registers, 3 memory,
+  4-5 int scratch, 6-7 long scratch, 8-9 position of the last instruction that can fault.
+   */
+  private static final class Code extends Bytes {
+    private final ConstantPool pool;
+    // Start of the fault handler, which follows the block body
+    int handler;
+
+    Code(ConstantPool pool) {
+      this.pool = pool;
+    }
+
+    // Emits one (possibly fused) operation; returns true if it ends the block
+    boolean instruction(int p, int v, int pc, int count) {
+      int a = packedA(p);
+      int b = packedB(p);
+      int c = packedC(p);
+      int next = pc + (length(packedOp(p)) << 2);
+      // Instructions retired if this one faults, as the interpreter counts them
+      int started = count - length(packedOp(p)) + 1;
+
+      switch (packedOp(p)) {
+        case OP_LD:
+          position(started, pc);
+          beginStore(a);
+          u1(0x2B); // aload_1
+          constant(v);
+          loadWord();
+          endStore(a);
+          return false;
+        case OP_SV:
+          position(started, pc);
+          u1(0x2B); // aload_1
+          constant(v);
+          load(a);
+          storeWord(count, next);
+          return false;
+        case OP_LUI:
+          beginStore(a);
+          constant(v);
+          endStore(a);
+          return false;
+        case OP_ADI:
+        case OP_ADS:
+          beginStore(b);
+          load(a);
+          constant(v);
+          u1(0x60); // iadd
+          endStore(b);
+          return false;
+        case OP_LR:
+          position(started, pc);
+          beginStore(c);
+          u1(0x2B);
+          load(a);
+          loadWord();
+          endStore(c);
+          return false;
+        case OP_SVR:
+          position(started, pc);
+          u1(0x2B);
+          load(c);
+          load(a);
+          storeWord(count, next);
+          return false;
+        case OP_MPC:
+          beginStore(c);
+          constant(pc + 4);
+          endStore(c);
+          return false;
+        case OP_ADD:
+          binary(a, b, c, 0x60);
+          return false;
+        case OP_NEG:
+          beginStore(c);
+          load(a);
+          u1(0x02); // iconst_m1
+          u1(0x82); // ixor
+          endStore(c);
+          return false;
+        case OP_AND:
+          binary(a, b, c, 0x7E);
+          return false;
+        case OP_OR:
+          binary(a, b, c, 0x80);
+          return false;
+        case OP_MUL:
+          multiply(a, b);
+          return false;
+        case OP_DIV:
+          position(started, pc);
+          divide(a, b, pc);
+          return false;
+        case OP_SLL:
+          shift(a, c, 0x78);
+          return false;
+        case OP_SRL:
+          shift(a, c, 0x7C);
+          return false;
+        case OP_SRA:
+          shift(a, c, 0x7A);
+          return false;
+        case OP_CMP:
+          compare(a, b, c, 0xA0); // if_icmpne
+          return false;
+        case OP_LT:
+          compare(a, b, c, 0xA2); // if_icmpge
+          return false;
+        case OP_JRZ:
+          load(a);
+          conditionalReturn(0x99, count, next); // ifeq
+          returnRegister(count, c);
+          return true;
+        case OP_JRN:
+          load(a);
+          conditionalReturn(0x9A, count, next); // ifne
+          returnRegister(count, c);
+          return true;
+        case OP_JT:
+          returnConstant(count, v);
+          return true;
+        case OP_JR:
+          returnRegister(count, a);
+          return true;
+        case OP_JIZ:
+          load(a);
+          conditionalReturn(0x99, count, next);
+          returnConstant(count, v);
+          return true;
+        case OP_JNZ:
+          load(a);
+          conditionalReturn(0x9A, count, next);
+          returnConstant(count, v);
+          return true;
+        case OP_PUSH:
+          position(started, pc);
+          beginStore(c);
+          load(c);
+          constant(v);
+          u1(0x60);
+          endStore(c);
+          u1(0x2B);
+          load(c);
+          load(a);
+          storeWord(count, next);
+          return false;
+        case OP_POP:
+          position(started, pc);
+          beginStore(c);
+          u1(0x2B);
+          load(a);
+          loadWord();
+          endStore(c);
+          beginStore(a);
+          load(a);
+          constant(v);
+          u1(0x60);
+          endStore(a);
+          return false;
+        case OP_SUB:
+          beginStore(K0);
+          load(b);
+          u1(0x74); // ineg
+          endStore(K0);
+          binary(a, K0, c, 0x60);
+          return false;
+        case OP_SUBI:
+          beginStore(K0);
+          constant(-v);
+          endStore(K0);
+          binary(a, K0, c, 0x60);
+          return false;
+        case OP_MULI:
+          beginStore(c);
+          constant(v);
+          endStore(c);
+          multiply(a, b);
+          return false;
+        case OP_DIVI:
+          position(started, pc);
+          beginStore(c);
+          constant(v);
+          endStore(c);
+          divide(a, b, pc + 4);
+          return false;
+        case OP_LI32:
+          beginStore(a);
+          constant(v);
+          endStore(a);
+          return false;
+        case OP_CALL:
+          beginStore(c);
+          constant(pc + 12);
+          endStore(c);
+          returnConstant(count, v);
+          return true;
+        case OP_CALLR:
+          beginStore(c);
+          constant(pc + 12);
+          endStore(c);
+          returnRegister(count, a);
+          return true;
+        case OP_TRAP:
+          // Ends the block, since the handler may halt the machine or end its time slice
+          position(started, pc);
+          u1(0x2B);
+          constant(v);
+          constant(pc);
+          u1(0xB6); // invokevirtual
+          u2(pool.methodRef(MACHINE, "trap", "(II)V"));
+          returnConstant(count, next);
+          return true;
+        default:
+          throw new IllegalStateException("Cannot compile operation " + packedOp(p));
+      }
+    }
+
+    // Records the instruction that is about to run for the fault handler
+    void position(int count, int pc) {
+      u1(0x14); // ldc2_w
+      u2(pool.longConstant(((long) count << 32) | (pc & 0xFFFFFFFFL)));
+      u1(0x37); // lstore
+      u1(8);
+    }
+
+    // Stack: the exception. Stores the recorded position to the machine and rethrows
+    void faultHandler() {
+      handler = length;
+      u1(0x2B); // aload_1
+      u1(0x16); // lload
+      u1(8);
+      u1(0xB5); // putfield
+      u2(pool.fieldRef(MACHINE, "faultPosition", "J"));
+      u1(0xBF); // athrow
+    }
+
+    private void load(int reg) {
+      if (reg == 0) {
+        u1(0x03); // iconst_0
+      } else {
+        u1(0x2C); // aload_2
+        constant(reg);
+        u1(0x2E); // iaload
+      }
+    }
+
+    // Writes to $0 are evaluated for their side effects and discarded
+    private void beginStore(int reg) {
+      if (reg != 0) {
+        u1(0x2C);
+        constant(reg);
+      }
+    }
+
+    private void endStore(int reg) {
+      u1(reg == 0 ? 0x57 : 0x4F); // pop : iastore
+    }
+
+    private void binary(int a, int b, int c, int opcode) {
+      beginStore(c);
+      load(a);
+      load(b);
+      u1(opcode);
+      endStore(c);
+    }
+
+    private void shift(int a, int c, int opcode) {
+      beginStore(c);
+      load(a);
+      u1(0x04); // iconst_1
+      u1(opcode);
+      endStore(c);
+    }
+
+    private void compare(int a, int b, int c, int branchIfFalse) {
+      beginStore(c);
+      load(a);
+      load(b);
+      u1(branchIfFalse);
+      u2(7);
+      u1(0x04); // iconst_1
+      u1(0xA7); // goto
+      u2(4);
+      u1(0x03); // iconst_0
+      endStore(c);
+    }
+
+    private void multiply(int a, int b) {
+      load(a);
+      u1(0x85); // i2l
+      load(b);
+      u1(0x85);
+      u1(0x69); // lmul
+      u1(0x37); // lstore
+      u1(6);
+      beginStore(LO);
+      u1(0x16); // lload
+      u1(6);
+      u1(0x88); // l2i
+      endStore(LO);
+      beginStore(HI);
+      u1(0x16);
+      u1(6);
+      constant(32);
+      u1(0x7D); // lushr
+      u1(0x88);
+      endStore(HI);
+    }
+
+    private void divide(int a, int b, int pc) {
+      load(a);
+      u1(0x36); // istore
+      u1(4);
+      load(b);
+      u1(0x59); // dup
+      u1(0x36);
+      u1(5);
+      constant(pc);
+      u1(0xB8); // invokestatic
+      u2(pool.methodRef(MACHINE, "checkDivisor", "(II)V"));
+      beginStore(LO);
+      u1(0x15); // iload
+      u1(4);
+      u1(0x15);
+      u1(5);
+      u1(0x6C); // idiv
+      endStore(LO);
+      beginStore(HI);
+      u1(0x15);
+      u1(4);
+      u1(0x15);
+      u1(5);
+      u1(0x70); // irem
+      endStore(HI);
+    }
+
+    // Stack: machine, address
+    private void loadWord() {
+      u1(0xB6); // invokevirtual
+      u2(pool.methodRef(MACHINE, "load", "(I)I"));
+    }
+
+    // Stack: machine, address, value. Leaves the block if the store modified program text
+    private void storeWord(int count, int next) {
+      u1(0xB6); // invokevirtual
+      u2(pool.methodRef(MACHINE, "blockStore", "(II)Z"));
+      conditionalReturn(0x99, count, next);
+    }
+
+    // Consumes an int and returns (count, pc) unless the branch is taken
+    private void conditionalReturn(int branchOpcode, int count, int pc) {
+      u1(branchOpcode);
+      u2(3 + 4);
+      returnConstant(count, pc);
+    }
+
+    void returnConstant(int count, int pc) {
+      u1(0x14); // ldc2_w
+      u2(pool.longConstant(((long) count << 32) | (pc & 0xFFFFFFFFL)));
+      u1(0xAD); // lreturn
+    }
+
+    private void returnRegister(int count, int reg) {
+      load(reg);
+      u1(0x85);
+      u1(0x14);
+      u2(pool.longConstant(0xFFFFFFFFL));
+      u1(0x7F); // land
+      u1(0x14);
+      u2(pool.longConstant((long) count << 32));
+      u1(0x81); // lor
+      u1(0xAD);
+    }
+
+    private void constant(int value) {
+      if (value >= -1 && value <= 5) {
+        u1(0x03 + value); // iconst_<n>
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        u1(0x10); // bipush
+        u1(value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        u1(0x11); // sipush
+        u2(value);
+      } else {
+        u1(0x13); // ldc_w
+        u2(pool.integer(value));
+      }
+    }
+  }
+
+  private static final class ConstantPool {
+    final Bytes entries = new Bytes();
+    int count = 1;
+    private final Map<String, Integer> indices = new HashMap<>();
+
+    int utf8(String value) {
+      return intern("U" + value, () -> {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        entries.u1(1);
+        entries.u2(bytes.length);
+        entries.bytes(bytes, bytes.length);
+      }, 1);
+    }
+
+    int classRef(String name) {
+      int nameIndex = utf8(name);
+      return intern("C" + name, () -> {
+        entries.u1(7);
+        entries.u2(nameIndex);
+      }, 1);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+      int ownerIndex = classRef(owner);
+      int nameIndex = utf8(name);
+      int descIndex = utf8(descriptor);
+      int natIndex = intern("N" + name + ":" + descriptor, () -> {
+        entries.u1(12);
+        entries.u2(nameIndex);
+        entries.u2(descIndex);
+      }, 1);
+      return intern("M" + owner + "." + name + ":" + descriptor, () -> {
+        entries.u1(10);
+        entries.u2(ownerIndex);
+        entries.u2(natIndex);
+      }, 1);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+      int ownerIndex = classRef(owner);
+      int nameIndex = utf8(name);
+      int descIndex = utf8(descriptor);
+      int natIndex = intern("N" + name + ":" + descriptor, () -> {
+        entries.u1(12);
+        entries.u2(nameIndex);
+        entries.u2(descIndex);
+      }, 1);
+      return intern("F" + owner + "." + name + ":" + descriptor, () -> {
+        entries.u1(9);
+        entries.u2(ownerIndex);
+        entries.u2(natIndex);
+      }, 1);
+    }
+
+    int integer(int value) {
+      return intern("I" + value, () -> {
+        entries.u1(3);
+        entries.u4(value);
+      }, 1);
+    }
+
+    int longConstant(long value) {
+      return intern("J" + value, () -> {
+        entries.u1(5);
+        entries.u4((int) (value >>> 32));
+        entries.u4((int) value);
+      }, 2);
+    }
+
+    private int intern(String key, Runnable writer, int slots) {
+      Integer index = indices.get(key);
+      if (index != null) {
+        return index;
+      }
+
+      writer.run();
+      int assigned = count;
+      count += slots;
+      indices.put(key, assigned);
+      return assigned;
+    }
+  }
+
+  private static class Bytes {
+    byte[] data = new byte[256];
+    int length;
+
+    void u1(int value) {
+      if (length == data.length) {
+        data = Arrays.copyOf(data, length * 2);
+      }
+      data[length++] = (byte) value;
+    }
+
+    void u2(int value) {
+      u1(value >>> 8);
+      u1(value);
+    }
+
+    void u4(int value) {
+      u2(value >>> 16);
+      u2(value);
+    }
+
+    void bytes(Bytes other) {
+      bytes(other.data, other.length);
+    }
+
+    void bytes(byte[] src, int len) {
+      for (int i = 0; i < len; i++) {
+        u1(src[i]);
+      }
+    }
+  }
+}
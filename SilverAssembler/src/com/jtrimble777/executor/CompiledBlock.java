@@ -0,0 +1,13 @@
+package com.jtrimble777.executor;
+
+import com.jtrimble777.executor.memory.GuestMemory;
+
+/*
+A basic block of program text translated to JVM bytecode by BlockCompiler. Running it returns the
+address of the next instruction in the low 32 bits and the number of instructions retired in the
+high 32 bits. If an instruction faults, the block stores its PC and the count up to and
+including it, in the same layout, to SALMachine.faultPosition before the exception leaves.
+ */
+interface CompiledBlock {
+  long execute(SALMachine machine, int[] registers, GuestMemory memory);
+}
@@ -0,0 +1,189 @@
+package com.jtrimble777.executor;
+
+import com.jtrimble777.common.InstructionType;
+import com.jtrimble777.common.MemoryStructure;
+
+/*
+Maps a raw instruction word onto a dense operation index, using only the bits that select the
+instruction: the top nibble for ITYPE/STYPE words and, when that nibble is 0, the RTYPE function
+field in bits 8-12. The resulting 9 bit key indexes a table built once from the opcodes below.
+ */
+final class DecodeTable {
+  static final int OP_ILLEGAL = 0;
+  static final int OP_LD = 1;
+  static final int OP_SV = 2;
+  static final int OP_LUI = 3;
+  static final int OP_ADI = 4;
+  static final int OP_ADS = 5;
+  static final int OP_LR = 6;
+  static final int OP_SVR = 7;
+  static final int OP_MPC = 8;
+  static final int OP_ADD = 9;
+  static final int OP_NEG = 10;
+  static final int OP_AND = 11;
+  static final int OP_OR = 12;
+  static final int OP_MUL = 13;
+  static final int OP_DIV = 14;
+  static final int OP_SLL = 15;
+  static final int OP_SRL = 16;
+  static final int OP_SRA = 17;
+  static final int OP_CMP = 18;
+  static final int OP_LT = 19;
+  static final int OP_JRZ = 20;
+  static final int OP_JRN = 21;
+  static final int OP_JT = 22;
+  static final int OP_JR = 23;
+  static final int OP_JIZ = 24;
+  static final int OP_JNZ = 25;
+
+  // Superinstructions; only ever produced by DecodedText.fuse for cached program text
+  static final int OP_PUSH = 26;   // ADS s,v,s + SVR x,s
+  static final int OP_POP = 27;    // LR s,x + ADI s,v,s
+  static final int OP_SUB = 28;    // ADD $0,b,$k0 + NEG + ADI $k0,1,$k0 + ADD a,$k0,c
+  static final int OP_SUBI = 29;   // ADI/ADS $0,v,$k0 + NEG + ADI $k0,1,$k0 + ADD a,$k0,c
+  static final int OP_MULI = 30;   // ADI $0,v,c + MUL a,b
+  static final int OP_DIVI = 31;   // ADI $0,v,c + DIV a,b
+  static final int OP_LI32 = 32;   // LUI hi,x + ADI x,lo,x
+  static final int OP_CALL = 33;   // MPC c + ADI c,8,c + JT v
+  static final int OP_CALLR = 34;  // MPC c + ADI c,8,c + JR a
+
+  // Host syscall, in the STYPE opcode space left free by the base instruction set
+  static final int OP_TRAP = 35;
+
+  static final int OP_COUNT = 36;
+
+  // Mnemonic of each operation, indexed by operation
+  private static final String[] NAMES = {
+      "ILLEGAL", "LD", "SV", "LUI", "ADI", "ADS", "LR", "SVR", "MPC", "ADD", "NEG", "AND", "OR",
+      "MUL", "DIV", "SLL", "SRL", "SRA", "CMP", "LT", "JRZ", "JRN", "JT", "JR", "JIZ", "JNZ",
+      "PUSH", "POP", "SUB", "SUBI", "MULI", "DIVI", "LI32", "CALL", "CALLR", "TRAP"
+  };
+
+  private static final byte[] TABLE = new byte[16 << 5];
+
+  static {
+    // ITYPE
+    itype(1, OP_LD);
+    itype(2, OP_SV);
+    itype(3, OP_LUI);
+    itype(4, OP_ADI);
+    itype(5, OP_ADS);
+
+    // RTYPE
+    rtype(0, OP_LR);
+    rtype(1, OP_SVR);
+    rtype(2, OP_MPC);
+    rtype(3, OP_ADD);
+    rtype(4, OP_NEG);
+    rtype(5, OP_AND);
+    rtype(6, OP_OR);
+    rtype(7, OP_MUL);
+    rtype(8, OP_DIV);
+    rtype(9, OP_SLL);
+    rtype(10, OP_SRL);
+    rtype(11, OP_SRA);
+    rtype(12, OP_CMP);
+    rtype(13, OP_LT);
+    rtype(14, OP_JRZ);
+    rtype(15, OP_JRN);
+
+    // STYPE
+    itype(8, OP_JT);
+    itype(9, OP_JR);
+    itype(10, OP_JIZ);
+    itype(11, OP_JNZ);
+    itype(12, OP_TRAP);
+  }
+
+  private DecodeTable() {
+  }
+
+  static String name(int op) {
+    return NAMES[op];
+  }
+
+  /*
+  A pre-decoded instruction is held as two ints: the operation index and register fields packed
+  together, and an operand holding the immediate already extended/shifted the way the operation
+  consumes it (absolute byte addresses for jump targets).
+   */
+  static int pack(int word) {
+    return pack(op(word), InstructionType.regA(word), InstructionType.regB(word),
+        InstructionType.regC(word));
+  }
+
+  static int operand(int word) {
+    switch (op(word)) {
+      case OP_LD:
+      case OP_SV:
+      case OP_ADI:
+        return InstructionType.imm(word);
+      case OP_LUI:
+        return InstructionType.imm(word) << 16;
+      case OP_ADS:
+        return InstructionType.signedImm(word);
+      case OP_TRAP:
+        return InstructionType.bigImm(word);
+      case OP_JT:
+      case OP_JIZ:
+      case OP_JNZ:
+        return MemoryStructure.PROGRAM_TEXT_BEGIN + (InstructionType.bigImm(word) << 2);
+      default:
+        return 0;
+    }
+  }
+
+  static int pack(int op, int a, int b, int c) {
+    return op | (a << 8) | (b << 13) | (c << 18);
+  }
+
+  // Number of instruction words covered by a (possibly fused) operation
+  static int length(int op) {
+    switch (op) {
+      case OP_PUSH:
+      case OP_POP:
+      case OP_MULI:
+      case OP_DIVI:
+      case OP_LI32:
+        return 2;
+      case OP_CALL:
+      case OP_CALLR:
+        return 3;
+      case OP_SUB:
+      case OP_SUBI:
+        return 4;
+      default:
+        return 1;
+    }
+  }
+
+  static int packedOp(int packed) {
+    return packed & 0xFF;
+  }
+
+  static int packedA(int packed) {
+    return (packed >>> 8) & 0x1F;
+  }
+
+  static int packedB(int packed) {
+    return (packed >>> 13) & 0x1F;
+  }
+
+  static int packedC(int packed) {
+    return (packed >>> 18) & 0x1F;
+  }
+
+  static int op(int word) {
+    int top = InstructionType.opcode(word);
+    int key = top == 0 ? InstructionType.function(word) : top << 5;
+    return TABLE[key];
+  }
+
+  private static void itype(int opcode, int op) {
+    TABLE[opcode << 5] = (byte) op;
+  }
+
+  private static void rtype(int function, int op) {
+    TABLE[function] = (byte) op;
+  }
+}
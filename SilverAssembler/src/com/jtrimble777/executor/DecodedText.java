@@ -0,0 +1,217 @@
+package com.jtrimble777.executor;
+
+import static com.jtrimble777.executor.DecodeTable.*;
+
+import com.jtrimble777.common.MemoryStructure;
+import com.jtrimble777.common.Register;
+import com.jtrimble777.executor.memory.GuestMemory;
+import java.util.Arrays;
+
+/*
+Pre-decoded copy of the program text segment, one slot per word-aligned address starting at
+PROGRAM_TEXT_BEGIN. Slots are filled when a program is loaded; a store that overlaps a slot resets
+it to UNDECODED, and it is decoded again from memory the next time it is fetched.
+
+After decoding, fixed instruction sequences produced by the pseudo-instruction expansions are
+replaced in their first slot by a single fused operation. The remaining slots keep their plain
+decoding so that jumps into the middle of a sequence still behave. Fused operations perform
+every register write of the original sequence, in order, including those to $k0.
+
+A copy made for a snapshot shares the slot arrays with its source. Both sides then copy the arrays
+before their first write, which only happens once a program stores into its own text, so forking
+a machine normally never copies them.
+ */
+final class DecodedText {
+  static final int UNDECODED = -1;
+
+  static final int BEGIN = MemoryStructure.PROGRAM_TEXT_BEGIN;
+  static final int END = MemoryStructure.PROGRAM_TEXT_END;
+  static final int SLOTS = (END - BEGIN + 1) >> 2;
+
+  private static final int K0 = Register.OS0.getIndex();
+
+  // Replaced by a private copy on the first write while shared; readers holding the arrays must
+  // fetch them again after anything that may write
+  int[] packed;
+  int[] operands;
+  BlockCompiler compiler;
+  private boolean shared;
+
+  DecodedText() {
+    this.packed = new int[SLOTS];
+    this.operands = new int[SLOTS];
+    Arrays.fill(packed, UNDECODED);
+  }
+
+  // Copy for a snapshot, or a machine restored or forked from one; compiled blocks are shared
+  DecodedText(DecodedText source) {
+    this.packed = source.packed;
+    this.operands = source.operands;
+    this.shared = true;
+    // A snapshot's text is already shared and must not be written, even with the same value
+    if (!source.shared) {
+      source.shared = true;
+    }
+    if (source.compiler != null) {
+      this.compiler = new BlockCompiler(source.compiler, this);
+    }
+  }
+
+  void decodeAll(GuestMemory memory) {
+    own();
+    for (int slot = 0; slot < SLOTS; slot++) {
+      decode(memory, slot);
+    }
+  }
+
+  void fuseAll() {
+    own();
+    for (int slot = 0; slot < SLOTS; slot++) {
+      fuse(slot);
+    }
+  }
+
+  void decode(GuestMemory memory, int slot) {
+    own();
+    int word = SALMachine.loadWord(memory, BEGIN + (slot << 2));
+    packed[slot] = pack(word);
+    operands[slot] = operand(word);
+  }
+
+  // Returns the slot for a fetch address, or -1 if the address is not a cached text address
+  static int slotOf(int address) {
+    int offset = address - BEGIN;
+    if (offset < 0 || (offset & 3) != 0 || offset >= SLOTS << 2) {
+      return -1;
+    }
+    return offset >> 2;
+  }
+
+  // Called after a word store to address, which may straddle two slots. Returns true if any slot
+  // was touched
+  boolean invalidate(int address) {
+    int offset = address - BEGIN;
+    if (offset + 3 < 0 || offset >= SLOTS << 2) {
+      return false;
+    }
+
+    own();
+    int first = Math.max(offset, 0) >> 2;
+    int last = Math.min((offset + 3) >> 2, SLOTS - 1);
+    for (int slot = first; slot <= last; slot++) {
+      packed[slot] = UNDECODED;
+    }
+
+    // Fused operations starting before the store may cover the modified words
+    for (int slot = Math.max(first - 3, 0); slot < first; slot++) {
+      int p = packed[slot];
+      if (p != UNDECODED && slot + length(packedOp(p)) > first) {
+        packed[slot] = UNDECODED;
+      }
+    }
+
+    if (compiler != null) {
+      compiler.invalidate(first, last);
+    }
+    return true;
+  }
+
+  private void own() {
+    if (shared) {
+      packed = packed.clone();
+      operands = operands.clone();
+      shared = false;
+    }
+  }
+
+  private void fuse(int slot) {
+    if (slot + 1 >= SLOTS) {
+      return;
+    }
+
+    int p0 = packed[slot];
+    int p1 = packed[slot + 1];
+    int op0 = packedOp(p0);
+    int op1 = packedOp(p1);
+    int a0 = packedA(p0);
+    int b0 = packedB(p0);
+    int c0 = packedC(p0);
+    int a1 = packedA(p1);
+    int b1 = packedB(p1);
+
+    switch (op0) {
+      case OP_ADS:
+        if (op1 == OP_SVR && a0 != 0 && a0 == b0 && packedC(p1) == a0) {
+          packed[slot] = pack(OP_PUSH, a1, 0, a0);
+          return;
+        }
+        // ADS $0,v,$k0 can start a subtraction, as ADI does
+        fuseImmediate(slot, a0, b0, op1, a1, b1);
+        return;
+      case OP_ADI:
+        fuseImmediate(slot, a0, b0, op1, a1, b1);
+        return;
+      case OP_ADD:
+        if (a0 == 0 && c0 == K0 && isNegateTail(slot)) {
+          int p3 = packed[slot + 3];
+          packed[slot] = pack(OP_SUB, packedA(p3), b0, packedC(p3));
+        }
+        return;
+      case OP_LR:
+        if (op1 == OP_ADI && a0 != 0 && a1 == a0 && b1 == a0) {
+          packed[slot] = pack(OP_POP, a0, 0, c0);
+          operands[slot] = operands[slot + 1];
+        }
+        return;
+      case OP_LUI:
+        if (op1 == OP_ADI && a0 != 0 && a1 == a0 && b1 == a0) {
+          packed[slot] = pack(OP_LI32, a0, 0, 0);
+          operands[slot] = operands[slot] + operands[slot + 1];
+        }
+        return;
+      case OP_MPC:
+        if (op1 != OP_ADI || c0 == 0 || a1 != c0 || b1 != c0 || operands[slot + 1] != 8
+            || slot + 2 >= SLOTS) {
+          return;
+        }
+        int p2 = packed[slot + 2];
+        if (packedOp(p2) == OP_JT) {
+          packed[slot] = pack(OP_CALL, 0, 0, c0);
+          operands[slot] = operands[slot + 2];
+        } else if (packedOp(p2) == OP_JR) {
+          packed[slot] = pack(OP_CALLR, packedA(p2), 0, c0);
+        }
+        return;
+      default:
+    }
+  }
+
+  // An immediate loaded into b0 by ADI/ADS $0,v,b0, folded into a following MUL or DIV, or
+  // into the SUB its negation sequence starts
+  private void fuseImmediate(int slot, int a0, int b0, int op1, int a1, int b1) {
+    if (a0 != 0 || b0 == 0) {
+      return;
+    }
+    if (op1 == OP_MUL || op1 == OP_DIV) {
+      packed[slot] = pack(op1 == OP_MUL ? OP_MULI : OP_DIVI, a1, b1, b0);
+    } else if (b0 == K0 && isNegateTail(slot)) {
+      int p3 = packed[slot + 3];
+      packed[slot] = pack(OP_SUBI, packedA(p3), 0, packedC(p3));
+    }
+  }
+
+  // NEG $k0,$k0 + ADI $k0,1,$k0 + ADD a,$k0,c
+  private boolean isNegateTail(int slot) {
+    if (slot + 3 >= SLOTS) {
+      return false;
+    }
+
+    int p1 = packed[slot + 1];
+    int p2 = packed[slot + 2];
+    int p3 = packed[slot + 3];
+    return packedOp(p1) == OP_NEG && packedA(p1) == K0 && packedC(p1) == K0
+        && packedOp(p2) == OP_ADI && packedA(p2) == K0 && packedB(p2) == K0
+        && operands[slot + 2] == 1
+        && packedOp(p3) == OP_ADD && packedB(p3) == K0;
+  }
+}
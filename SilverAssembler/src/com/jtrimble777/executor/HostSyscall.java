@@ -0,0 +1,10 @@
+package com.jtrimble777.executor;
+
+/*
+A syscall run by the host instead of by guest OS code, see SALMachine.enableHostSyscalls. It gets
+the machine's live register file; arguments are read from and results written to it directly.
+ */
+@FunctionalInterface
+public interface HostSyscall {
+  void call(SALMachine machine, int[] registers);
+}
@@ -0,0 +1,63 @@
+package com.jtrimble777.executor;
+
+import com.jtrimble777.common.Register;
+import com.jtrimble777.common.Syscall;
+import com.jtrimble777.executor.iomachines.STDIn;
+import com.jtrimble777.executor.iomachines.STDOut;
+
+/*
+Host implementations of the syscalls in Syscall, going through the machine's console devices the
+same way a guest OS storing to and loading from their mapped bytes would:
+
+- PRINT writes the low byte of $a0 to the output device.
+- READ consumes one byte of input into $v0 and sets $v1 to the input device's status: 1 with a
+  byte, 0xFF once the input has ended, or 0 if none is available yet, in which case the machine
+  also ends its time slice.
+- EXIT halts the machine with $a0 as the exit code.
+ */
+public final class HostSyscalls {
+  private static final int V0 = Register.RV0.getIndex();
+  private static final int V1 = Register.RV1.getIndex();
+  private static final int A0 = Register.ARG0.getIndex();
+
+  public static final HostSyscall PRINT = (machine, r) -> output(machine).write((byte) r[A0]);
+
+  public static final HostSyscall READ = (machine, r) -> {
+    int next = input(machine).read();
+    r[V0] = next & 0xFF;
+    r[V1] = next >>> 8;
+    if (next == 0) {
+      machine.requestYield();
+    }
+  };
+
+  public static final HostSyscall EXIT = (machine, r) -> machine.exit(r[A0]);
+
+  private HostSyscalls() {
+  }
+
+  // Handlers for every syscall, indexed by Syscall.getIndex
+  public static HostSyscall[] defaults() {
+    HostSyscall[] handlers = new HostSyscall[Syscall.values().length];
+    handlers[Syscall.PRINT.getIndex()] = PRINT;
+    handlers[Syscall.READ.getIndex()] = READ;
+    handlers[Syscall.EXIT.getIndex()] = EXIT;
+    return handlers;
+  }
+
+  private static STDOut output(SALMachine machine) {
+    STDOut device = machine.device(STDOut.class);
+    if (device == null) {
+      throw new MachineException(machine.getProgramCounter(), "PRINT needs an output device");
+    }
+    return device;
+  }
+
+  private static STDIn input(SALMachine machine) {
+    STDIn device = machine.device(STDIn.class);
+    if (device == null) {
+      throw new MachineException(machine.getProgramCounter(), "READ needs an input device");
+    }
+    return device;
+  }
+}
@@ -0,0 +1,218 @@
+package com.jtrimble777.executor;
+
+import com.jtrimble777.common.MemoryStructure;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+Execution counters for one machine, enabled with SALMachine.enableCounters. Everything is kept in
+plain long arrays that only the machine's own thread writes; readers on other threads, such as
+JMX clients, may see values that are slightly behind.
+
+Counting is per architectural instruction: while counters are enabled the machine does not fuse
+instruction sequences or run compiled blocks. Memory accesses are the data loads and stores made
+by instructions, counted by the MemoryStructure region they start in.
+ */
+public class MachineCounters implements MachineCountersMXBean {
+  public static final int REGION_RESERVED = 0;
+  public static final int REGION_DATA = 1;
+  public static final int REGION_TEXT = 2;
+  public static final int REGION_DYNAMIC = 3;
+  public static final int REGION_OS = 4;
+  public static final int REGION_MMIO = 5;
+  public static final int REGION_OTHER = 6;
+
+  private static final String[] REGION_NAMES = {
+      "reserved", "data", "text", "dynamic", "os", "mmio", "other"
+  };
+  private static final int TOP_BRANCHES = 10;
+
+  private long retired;
+  private final long[] opcodes = new long[DecodeTable.OP_COUNT];
+  // Conditional branches, per text slot, with the totals covering branches outside the text
+  private final long[] taken = new long[DecodedText.SLOTS];
+  private final long[] notTaken = new long[DecodedText.SLOTS];
+  private long totalTaken;
+  private long totalNotTaken;
+  private final long[] reads = new long[REGION_NAMES.length];
+  private final long[] writes = new long[REGION_NAMES.length];
+
+  void instruction(int op) {
+    retired++;
+    opcodes[op]++;
+  }
+
+  void branch(int address, boolean wasTaken) {
+    int slot = DecodedText.slotOf(address);
+    if (wasTaken) {
+      totalTaken++;
+      if (slot >= 0) {
+        taken[slot]++;
+      }
+    } else {
+      totalNotTaken++;
+      if (slot >= 0) {
+        notTaken[slot]++;
+      }
+    }
+  }
+
+  void read(int address) {
+    reads[regionOf(address)]++;
+  }
+
+  void write(int address) {
+    writes[regionOf(address)]++;
+  }
+
+  public static int regionOf(int address) {
+    if (address < 0) {
+      return REGION_OTHER;
+    } else if (address <= MemoryStructure.RSRVD1_END) {
+      return REGION_RESERVED;
+    } else if (address <= MemoryStructure.DATA_END) {
+      return REGION_DATA;
+    } else if (address <= MemoryStructure.PROGRAM_TEXT_END) {
+      return REGION_TEXT;
+    } else if (address <= MemoryStructure.DYNAMIC_DATA_END) {
+      return REGION_DYNAMIC;
+    } else if (address <= MemoryStructure.OS_TABLE_END) {
+      return REGION_OS;
+    } else if (address <= MemoryStructure.MMIO_END) {
+      return REGION_MMIO;
+    }
+    return REGION_OTHER;
+  }
+
+  @Override
+  public long getInstructionsRetired() {
+    return retired;
+  }
+
+  public long getOpcodeCount(String mnemonic) {
+    for (int op = 0; op < opcodes.length; op++) {
+      if (DecodeTable.name(op).equalsIgnoreCase(mnemonic)) {
+        return opcodes[op];
+      }
+    }
+    return 0;
+  }
+
+  // Non-zero counts only, by mnemonic
+  @Override
+  public Map<String, Long> getOpcodeCounts() {
+    Map<String, Long> out = new LinkedHashMap<>();
+    for (int op = 0; op < opcodes.length; op++) {
+      if (opcodes[op] != 0) {
+        out.put(DecodeTable.name(op), opcodes[op]);
+      }
+    }
+    return out;
+  }
+
+  @Override
+  public long getBranchesTaken() {
+    return totalTaken;
+  }
+
+  @Override
+  public long getBranchesNotTaken() {
+    return totalNotTaken;
+  }
+
+  @Override
+  public Map<String, Long> getMemoryReads() {
+    return byRegion(reads);
+  }
+
+  @Override
+  public Map<String, Long> getMemoryWrites() {
+    return byRegion(writes);
+  }
+
+  public long getReads(int region) {
+    return reads[region];
+  }
+
+  public long getWrites(int region) {
+    return writes[region];
+  }
+
+  @Override
+  public void reset() {
+    retired = 0;
+    totalTaken = 0;
+    totalNotTaken = 0;
+    Arrays.fill(opcodes, 0);
+    Arrays.fill(taken, 0);
+    Arrays.fill(notTaken, 0);
+    Arrays.fill(reads, 0);
+    Arrays.fill(writes, 0);
+  }
+
+  // Registers these counters with the platform MBean server, under the com.jtrimble777 domain
+  public ObjectName register(String name) {
+    try {
+      ObjectName objectName = new ObjectName("com.jtrimble777:type=Machine,name="
+          + ObjectName.quote(name));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+      return objectName;
+    } catch (JMException e) {
+      throw new IllegalStateException("Could not register counters for " + name, e);
+    }
+  }
+
+  @Override
+  public String getReport() {
+    StringBuilder out = new StringBuilder();
+    out.append(String.format("Instructions retired: %d%n", retired));
+
+    out.append(String.format("%nOpcode          count      %%%n"));
+    Integer[] ops = new Integer[opcodes.length];
+    for (int op = 0; op < ops.length; op++) {
+      ops[op] = op;
+    }
+    Arrays.sort(ops, (x, y) -> Long.compare(opcodes[y], opcodes[x]));
+    for (int op : ops) {
+      if (opcodes[op] != 0) {
+        out.append(String.format("%-8s %12d %6.2f%n", DecodeTable.name(op), opcodes[op],
+            100.0 * opcodes[op] / retired));
+      }
+    }
+
+    out.append(String.format("%nBranches: %d taken, %d not taken%n", totalTaken, totalNotTaken));
+    Integer[] sites = new Integer[taken.length];
+    int siteCount = 0;
+    for (int slot = 0; slot < taken.length; slot++) {
+      if (taken[slot] + notTaken[slot] != 0) {
+        sites[siteCount++] = slot;
+      }
+    }
+    Arrays.sort(sites, 0, siteCount,
+        (x, y) -> Long.compare(taken[y] + notTaken[y], taken[x] + notTaken[x]));
+    for (int i = 0; i < Math.min(siteCount, TOP_BRANCHES); i++) {
+      int slot = sites[i];
+      out.append(String.format("  %08X %12d taken %12d not taken%n",
+          DecodedText.BEGIN + (slot << 2), taken[slot], notTaken[slot]));
+    }
+
+    out.append(String.format("%nRegion          reads       writes%n"));
+    for (int region = 0; region < REGION_NAMES.length; region++) {
+      out.append(String.format("%-8s %12d %12d%n", REGION_NAMES[region], reads[region],
+          writes[region]));
+    }
+    return out.toString();
+  }
+
+  private static Map<String, Long> byRegion(long[] counts) {
+    Map<String, Long> out = new LinkedHashMap<>();
+    for (int region = 0; region < REGION_NAMES.length; region++) {
+      out.put(REGION_NAMES[region], counts[region]);
+    }
+    return out;
+  }
+}
@@ -0,0 +1,23 @@
+package com.jtrimble777.executor;
+
+import java.util.Map;
+
+// Management view of a machine's MachineCounters
+public interface MachineCountersMXBean {
+
+  long getInstructionsRetired();
+
+  Map<String, Long> getOpcodeCounts();
+
+  long getBranchesTaken();
+
+  long getBranchesNotTaken();
+
+  Map<String, Long> getMemoryReads();
+
+  Map<String, Long> getMemoryWrites();
+
+  String getReport();
+
+  void reset();
+}
@@ -0,0 +1,8 @@
+package com.jtrimble777.executor;
+
+public class MachineException extends RuntimeException {
+
+  public MachineException(int programCounter, String message) {
+    super(String.format("Machine fault at PC %08X: %s", programCounter, message));
+  }
+}
@@ -0,0 +1,211 @@
+package com.jtrimble777.executor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Runs many machines at once on a shared fork-join pool. Each machine runs for a slice of
+sliceLength instructions and is then queued again behind every other runnable machine, so a long
+running program cannot starve the rest of the pool.
+
+Only machines still running are tracked; a finished machine is folded into totals and dropped, so
+the pool does not keep every machine and its memory alive. The final stats of the last
+FINISHED_HISTORY finished machines are kept for stats and report. Closing the pool cancels the
+futures of machines that have not finished.
+
+A machine whose STDIn reads a blocking channel, such as the console, holds a worker thread for as
+long as it waits for input. Give pooled machines input that never blocks (a non-blocking channel
+or one backed by memory), so that an empty input makes the machine yield its slice instead.
+ */
+public class MachinePool implements AutoCloseable {
+  public static final long DEFAULT_SLICE = 100_000;
+  public static final int FINISHED_HISTORY = 64;
+
+  private final ForkJoinPool pool;
+  private final long sliceLength;
+  private final Set<Job> running;
+  private final AtomicLong finished;
+  private final AtomicLong finishedInstructions;
+  // Final stats of the most recently finished machines, oldest first; guarded by itself
+  private final ArrayDeque<MachineStats> recentlyFinished;
+  private final long createdAt;
+  private volatile boolean closed;
+
+  public MachinePool() {
+    this(Runtime.getRuntime().availableProcessors(), DEFAULT_SLICE);
+  }
+
+  public MachinePool(int parallelism, long sliceLength) {
+    if (sliceLength < 1) {
+      throw new IllegalArgumentException("Slice length must be at least 1 instruction");
+    }
+    // Async mode keeps each worker's queue FIFO, so a resubmitted machine goes to the back
+    this.pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory,
+        null, true);
+    this.sliceLength = sliceLength;
+    this.running = ConcurrentHashMap.newKeySet();
+    this.finished = new AtomicLong();
+    this.finishedInstructions = new AtomicLong();
+    this.recentlyFinished = new ArrayDeque<>(FINISHED_HISTORY);
+    this.createdAt = System.nanoTime();
+  }
+
+  // The returned future completes with the machine once it halts, or with the fault it raised
+  public CompletableFuture<SALMachine> submit(String name, SALMachine machine) {
+    if (closed) {
+      throw new IllegalStateException("Machine pool is closed");
+    }
+    Job job = new Job(name, machine);
+    running.add(job);
+    try {
+      pool.execute(job);
+    } catch (RejectedExecutionException e) {
+      job.cancel();
+    }
+    return job.result;
+  }
+
+  // Machines that have not finished yet, then the most recently finished ones, oldest first
+  public List<MachineStats> stats() {
+    List<MachineStats> out = new ArrayList<>();
+    long now = System.nanoTime();
+    for (Job job : running) {
+      out.add(new MachineStats(job.name, job.retired, now - job.submittedAt, false));
+    }
+    synchronized (recentlyFinished) {
+      out.addAll(recentlyFinished);
+    }
+    return out;
+  }
+
+  // Machines that have halted, faulted or been cancelled
+  public long getFinished() {
+    return finished.get();
+  }
+
+  // Per machine in stats and total throughput, one line each
+  public String report() {
+    StringBuilder out = new StringBuilder();
+    long total = finishedInstructions.get();
+    int count = 0;
+    for (MachineStats stats : stats()) {
+      if (!stats.halted) {
+        total += stats.instructions;
+        count++;
+      }
+      out.append(String.format("%-24s %14d instr %10.2f MIPS %s%n", stats.name,
+          stats.instructions, stats.mips(), stats.halted ? "finished" : "running"));
+    }
+
+    double seconds = (System.nanoTime() - createdAt) / 1e9;
+    out.append(String.format("TOTAL %d machines (%d running) %d instr %.2f MIPS%n",
+        finished.get() + count, count, total, seconds > 0 ? total / seconds / 1e6 : 0));
+    return out.toString();
+  }
+
+  public boolean awaitQuiescence(long timeout, TimeUnit unit) {
+    return pool.awaitQuiescence(timeout, unit);
+  }
+
+  // Stops the pool; machines that have not finished complete with a CancellationException
+  @Override
+  public void close() {
+    closed = true;
+    pool.shutdownNow();
+    for (Job job : running) {
+      job.cancel();
+    }
+  }
+
+  public static class MachineStats {
+    public final String name;
+    public final long instructions;
+    public final long elapsedNanos;
+    // The machine has finished: halted, faulted or been cancelled
+    public final boolean halted;
+
+    public MachineStats(String name, long instructions, long elapsedNanos, boolean halted) {
+      this.name = name;
+      this.instructions = instructions;
+      this.elapsedNanos = elapsedNanos;
+      this.halted = halted;
+    }
+
+    public double mips() {
+      return elapsedNanos > 0 ? instructions * 1e3 / elapsedNanos : 0;
+    }
+  }
+
+  private class Job implements Runnable {
+    final String name;
+    final SALMachine machine;
+    final CompletableFuture<SALMachine> result;
+    final long submittedAt;
+    volatile long retired;
+
+    Job(String name, SALMachine machine) {
+      this.name = name;
+      this.machine = machine;
+      this.result = new CompletableFuture<>();
+      this.submittedAt = System.nanoTime();
+    }
+
+    @Override
+    public void run() {
+      if (result.isDone()) {
+        return;
+      }
+      try {
+        retired += machine.run(sliceLength);
+      } catch (Throwable e) {
+        // Errors too, such as a stack overflow in a compiled block, so the future always completes
+        finish();
+        result.completeExceptionally(e);
+        return;
+      }
+
+      if (machine.isHalted()) {
+        finish();
+        result.complete(machine);
+      } else if (closed) {
+        cancel();
+      } else {
+        try {
+          pool.execute(this);
+        } catch (RejectedExecutionException e) {
+          cancel();
+        }
+      }
+    }
+
+    void cancel() {
+      finish();
+      result.completeExceptionally(new CancellationException("Machine pool was closed"));
+    }
+
+    // Drops the job from the running set, counting and recording it once however it ended
+    private void finish() {
+      if (running.remove(this)) {
+        finished.incrementAndGet();
+        finishedInstructions.addAndGet(retired);
+        MachineStats stats = new MachineStats(name, retired, System.nanoTime() - submittedAt,
+            true);
+        synchronized (recentlyFinished) {
+          if (recentlyFinished.size() == FINISHED_HISTORY) {
+            recentlyFinished.removeFirst();
+          }
+          recentlyFinished.addLast(stats);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,52 @@
+package com.jtrimble777.executor;
+
+import com.jtrimble777.executor.iomachines.IOMachine;
+import com.jtrimble777.executor.iomachines.STDIn;
+import com.jtrimble777.executor.iomachines.STDOut;
+import com.jtrimble777.executor.memory.PagedMemory;
+import java.util.List;
+
+/*
+State of a machine captured by SALMachine.snapshot. The snapshot itself is never modified: a
+machine restored or forked from it shares its memory pages copy-on-write and works on its own copy
+of everything else, so one snapshot can be forked from any number of threads at once.
+ */
+public final class MachineSnapshot {
+  final PagedMemory memory;
+  final int[] registers;
+  final int programCounter;
+  final boolean halted;
+  final int exitCode;
+  final DecodedText text;
+  final HostSyscall[] syscalls;
+
+  MachineSnapshot(PagedMemory memory, int[] registers, int programCounter, boolean halted,
+      int exitCode, DecodedText text, HostSyscall[] syscalls) {
+    this.memory = memory;
+    this.registers = registers;
+    this.programCounter = programCounter;
+    this.halted = halted;
+    this.exitCode = exitCode;
+    this.text = text;
+    this.syscalls = syscalls;
+  }
+
+  public int getProgramCounter() {
+    return programCounter;
+  }
+
+  public boolean isHalted() {
+    return halted;
+  }
+
+  // A new machine in this state, attached to the console like SALMachine()
+  public SALMachine fork() {
+    return fork(List.of(new STDOut(), new STDIn()));
+  }
+
+  // A new machine in this state with its own devices. Compiled blocks and host syscalls are
+  // carried over
+  public SALMachine fork(List<IOMachine> ioMachines) {
+    return SALMachine.fork(this, ioMachines);
+  }
+}
@@ -2,108 +2,93 @@ package com.jtrimble777.executor;
 
 import com.jtrimble777.common.MemoryStructure;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
 
+/*
+Reads an executable (see ExecutableGenerator for the format) by mapping the file once. Headers are
+read straight from the mapping and each segment is a view of the mapped bytes, which
+SALMachine.load copies directly to its load address in guest memory.
+
+Program header lengths are word counts, as written by ExecutableGenerator; the data header length
+is a byte count.
+ */
 public class ProgramLoader {
+  private static final int MAIN_HEADER_LENGTH = 8;
+  private static final int DATA_HEADER_LENGTH = 8;
+  private static final int PROGRAM_HEADER_LENGTH = 12;
+
   public static LoadedProgram loadProgram(File src) throws IOException {
-    Scanner scanner = new Scanner(src);
-    FileInputStream fin = new FileInputStream(src);
-    byte[] fileContents = new byte[(int) src.length()];
-    fin.read(fileContents);
-    fin.close();
-
-    byte[] mainHeader;
-    try {
-      mainHeader = readHeader(scanner, 8);
-    } catch (NoSuchElementException e) {
+    ByteBuffer image;
+    try (FileChannel channel = FileChannel.open(src.toPath(), StandardOpenOption.READ)) {
+      image = channel.map(MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    if (image.limit() < MAIN_HEADER_LENGTH) {
       throw new ProgramLoadingException(src, "Could not read file header, not enough bytes");
     }
 
-    int entryPoint = toInt(mainHeader[0], mainHeader[1], mainHeader[2], mainHeader[3]);
-    int dataHeaderPos = toInt(mainHeader[4], mainHeader[5]);
-    int textHeaderPos = toInt(mainHeader[6], mainHeader[7]);
+    int entryPoint = image.getInt(0);
+    int dataHeaderPos = Short.toUnsignedInt(image.getShort(4));
+    int textHeaderPos = Short.toUnsignedInt(image.getShort(6));
 
-    Map<Integer, byte[]> out = new HashMap<>();
+    List<Segment> segments = new ArrayList<>();
+    int firstSegmentPos = image.limit();
     if (dataHeaderPos != 0) {
-      byte[] dataHeader = readHeader(scanner, 8);
-      int dStart = toInt(dataHeader[0], dataHeader[1], dataHeader[2], dataHeader[3]);
-      int dLen = toInt(dataHeader[4], dataHeader[5], dataHeader[6], dataHeader[7]);
-
-      addSegment(MemoryStructure.DATA_BEGIN, dStart, dLen, fileContents, out, src);
-    }
+      checkRange(src, image, dataHeaderPos, DATA_HEADER_LENGTH);
+      int dStart = image.getInt(dataHeaderPos);
+      int dLen = image.getInt(dataHeaderPos + 4);
 
-    int readI = textHeaderPos;
-    int minTextSeg = 0x1000000;
-    List<byte[]> textHeaders = new ArrayList<>();
-    while (readI<minTextSeg) {
-      byte[] th = readHeader(scanner, 12);
-      int start = toInt(th[0], th[1], th[2], th[3]);
-      if (start < minTextSeg) {
-        minTextSeg = start;
-      }
-      textHeaders.add(th);
-      readI += 12;
+      segments.add(segment(src, image, MemoryStructure.DATA_BEGIN, dStart, dLen));
+      firstSegmentPos = Math.min(firstSegmentPos, dStart);
     }
 
-    for (byte[] th : textHeaders) {
-      int start = toInt(th[0], th[1], th[2], th[3]);
-      int len = toInt(th[4], th[5], th[6], th[7]);
-      int offset = toInt(th[8], th[9], th[10], th[11]);
+    // Program headers run up to the first segment in the file
+    for (int pos = textHeaderPos; pos < firstSegmentPos; pos += PROGRAM_HEADER_LENGTH) {
+      checkRange(src, image, pos, PROGRAM_HEADER_LENGTH);
+      int start = image.getInt(pos);
+      int len = image.getInt(pos + 4) * 4;
+      int offset = image.getInt(pos + 8);
 
-      addSegment(MemoryStructure.PROGRAM_TEXT_BEGIN + offset,
-          start, len, fileContents, out, src);
+      segments.add(segment(src, image, MemoryStructure.PROGRAM_TEXT_BEGIN + offset, start, len));
+      firstSegmentPos = Math.min(firstSegmentPos, start);
     }
 
-    return new LoadedProgram(out, entryPoint);
+    return new LoadedProgram(segments, entryPoint);
   }
 
-  private static byte[] readHeader(Scanner src, int length) {
-    byte[] out = new byte[length];
-
-    for (int i=0; i<length; i++) {
-      out[i] = src.nextByte();
-    }
-
-    return out;
+  private static Segment segment(File src, ByteBuffer image, int address, int fPos, int len) {
+    checkRange(src, image, fPos, len);
+    return new Segment(address, image.slice(fPos, len));
   }
 
-  private static void addSegment(int pos, int fPos, int len, byte[] sdata, Map<Integer, byte[]> place, File src) {
-    try {
-      place.put(pos, Arrays.copyOfRange(sdata, fPos, fPos+len));
-    } catch (Exception e) {
+  private static void checkRange(File src, ByteBuffer image, int fPos, int len) {
+    if (fPos < 0 || len < 0 || fPos > image.limit() - len) {
       throw new ProgramLoadingException(src,
-          String.format("Could not read range of file from %08X to %08X", fPos, fPos+len));
+          String.format("Could not read range of file from %08X to %08X", fPos, fPos + len));
     }
   }
 
-  private static int toInt(byte... components) {
-    if (components.length < 1) {
-      throw new IllegalArgumentException("Cannot call with less than 1 argument");
-    }
+  public static class Segment {
+    public final int address;
+    public final ByteBuffer bytes;
 
-    int shift = (components.length * 8) - 8;
-    int out = 0;
-    for (byte b : components) {
-      out += ((int)b) << shift;
-      shift -= 8;
+    public Segment(int address, ByteBuffer bytes) {
+      this.address = address;
+      this.bytes = bytes;
     }
-
-    return out;
   }
 
   public static class LoadedProgram {
-    public Map<Integer, byte[]> segments;
+    public List<Segment> segments;
     public int entryPoint;
 
-    public LoadedProgram(Map<Integer, byte[]> segments, int entryPoint) {
+    public LoadedProgram(List<Segment> segments, int entryPoint) {
       this.segments = segments;
       this.entryPoint = entryPoint;
     }
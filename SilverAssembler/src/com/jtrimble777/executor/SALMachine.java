@@ -1,22 +1,678 @@
 package com.jtrimble777.executor;
 
+import static com.jtrimble777.executor.DecodeTable.*;
+
+import com.jtrimble777.common.MemoryStructure;
+import com.jtrimble777.common.Register;
+import com.jtrimble777.common.Syscall;
+import com.jtrimble777.executor.ProgramLoader.LoadedProgram;
+import com.jtrimble777.executor.ProgramLoader.Segment;
 import com.jtrimble777.executor.iomachines.IOMachine;
 import com.jtrimble777.executor.iomachines.STDIn;
 import com.jtrimble777.executor.iomachines.STDOut;
+import com.jtrimble777.executor.memory.GuestMemory;
+import com.jtrimble777.executor.memory.PagedMemory;
 import java.util.List;
 
+/*
+Execution model:
+- The program counter holds a byte address. Each word is fetched big-endian and the counter is
+  advanced by 4 before the instruction executes, so MPC yields the address of the next word.
+- Immediate jump targets (JT, JIZ, JNZ) are word indices into the program text, matching the
+  label values produced by the assembler. Register jump targets (JR, JRZ, JRN) are byte addresses.
+- Transferring control into the reserved block at address 0 halts the machine. $ra starts out
+  as 0, so returning from main ends the program, and $sp starts at the top of dynamic data.
+- BIZ and BZL offsets are source lines in the assembly and byte offsets from the word after their
+  MPC in the program text; the assembler converts one into the other.
+- With host syscalls enabled, the OS table points each syscall at its own word at the start of
+  the OS code block. Control arriving at one of those words runs the host handler instead and
+  returns to $ra, so SYS costs its own expansion plus one host call.
+- TRAP runs the host handler of the syscall in its immediate and carries on with the next word.
+  It always goes to the host, with the default handlers unless host syscalls were enabled.
+ */
 public class SALMachine {
-  private byte[] memory;
+  private static final int LO = Register.LO.getIndex();
+  private static final int HI = Register.HI.getIndex();
+  private static final int K0 = Register.OS0.getIndex();
+  private static final int RA = Register.RET.getIndex();
+  // Entry point of the first host syscall; the others follow a word apart
+  private static final int HOST_ENTRY = MemoryStructure.OS_BEGIN;
+  // Handlers for TRAP on machines that did not enable host syscalls
+  private static final HostSyscall[] DEFAULT_SYSCALLS = HostSyscalls.defaults();
+  // Instructions per time slice of run(); devices are ticked between slices
+  private static final long RUN_SLICE = 1 << 20;
+
+  private GuestMemory memory;
   private int[] registerFile;
   private int programCounter;
   private List<IOMachine> ioMachines;
+  // Device owning each byte of the MMIO region, indexed from MemoryStructure.MMIO
+  private IOMachine[] mmioOwners;
+  private boolean halted;
+  // Set by a device that cannot make progress until more input arrives
+  private boolean yieldRequested;
+  private DecodedText text;
+  // Null unless enableCounters was called
+  private MachineCounters counters;
+  // Cleared by disableFusion
+  private boolean fusion = true;
+  // Indexed by Syscall.getIndex; null unless enableHostSyscalls was called
+  private HostSyscall[] syscalls;
+  private int exitCode;
+  // Set by a compiled block that faulted: the PC of the faulting instruction in the low 32 bits
+  // and the instructions retired up to and including it in the high 32 bits
+  long faultPosition;
 
   public SALMachine() {
-    this.memory = new byte[1048576];
+    this(GuestMemory.heap(MemoryStructure.MEMORY_SIZE));
+  }
+
+  public SALMachine(GuestMemory memory) {
+    this(memory, List.of(new STDOut(), new STDIn()));
+  }
+
+  public SALMachine(GuestMemory memory, List<IOMachine> ioMachines) {
+    this(memory, ioMachines, new DecodedText());
+  }
+
+  private SALMachine(GuestMemory memory, List<IOMachine> ioMachines, DecodedText text) {
+    if (memory.size() <= MemoryStructure.MMIO_END) {
+      throw new IllegalArgumentException("Guest memory must cover the whole memory layout, up to "
+          + String.format("%08X", MemoryStructure.MMIO_END));
+    }
+    this.memory = memory;
     this.registerFile = new int[32];
     this.programCounter = 0;
-    this.ioMachines = List.of(new STDOut(), new STDIn());
+    this.ioMachines = List.copyOf(ioMachines);
+    this.mmioOwners = mapDevices(ioMachines);
+    this.text = text;
+    STDIn input = device(STDIn.class);
+    if (input != null) {
+      input.setBeforeRead(this::flushDevices);
+    }
+  }
+
+  // A machine in the state captured by snapshot; the text copy is made once, here
+  static SALMachine fork(MachineSnapshot snapshot, List<IOMachine> ioMachines) {
+    PagedMemory memory = snapshot.memory.snapshot();
+    SALMachine machine = new SALMachine(memory, ioMachines, new DecodedText(snapshot.text));
+    machine.registerFile = snapshot.registers.clone();
+    machine.programCounter = snapshot.programCounter;
+    machine.halted = snapshot.halted;
+    machine.exitCode = snapshot.exitCode;
+    machine.syscalls = snapshot.syscalls == null ? null : snapshot.syscalls.clone();
+    return machine;
+  }
+
+  public void load(LoadedProgram program) {
+    for (Segment segment : program.segments) {
+      memory.write(segment.address, segment.bytes);
+    }
+
+    text.decodeAll(memory);
+    if (counters == null && fusion) {
+      text.fuseAll();
+    }
+    this.programCounter = MemoryStructure.PROGRAM_TEXT_BEGIN + (program.entryPoint << 2);
+    registerFile[Register.SP.getIndex()] = MemoryStructure.DYNAMIC_DATA_END + 1;
+    this.halted = false;
+    this.exitCode = 0;
+  }
+
+  // Enables the basic block compiler tier for hot program text
+  public void enableCompilation() {
+    if (text.compiler == null) {
+      text.compiler = new BlockCompiler(text);
+    }
+  }
+
+  /*
+  Starts counting executed instructions, branches and memory accesses. Fused sequences are
+  decoded back into their individual instructions and compiled blocks are no longer used, so
+  that every instruction is seen.
+   */
+  public MachineCounters enableCounters() {
+    if (counters == null) {
+      counters = new MachineCounters();
+      text.decodeAll(memory);
+    }
+    return counters;
+  }
+
+  // Runs every instruction through its plain decoding, as the counters do, but without counting
+  void disableFusion() {
+    if (fusion) {
+      fusion = false;
+      text.decodeAll(memory);
+    }
+  }
+
+  // Null unless counters are enabled
+  public MachineCounters getCounters() {
+    return counters;
+  }
+
+  /*
+  Runs PRINT, READ and EXIT as host code (see HostSyscalls) by pointing the OS table at the host
+  entry points. The table lives in guest memory, so this survives loading a program but not a
+  program overwriting the table.
+   */
+  public void enableHostSyscalls() {
+    if (syscalls == null) {
+      syscalls = HostSyscalls.defaults();
+    }
+    for (int i = 0; i < syscalls.length; i++) {
+      memory.storeWord(MemoryStructure.OS_TABLE + (i << 2), HOST_ENTRY + (i << 2));
+    }
+  }
+
+  // Replaces the host handler of one syscall; host syscalls must be enabled
+  public void setHostSyscall(Syscall syscall, HostSyscall handler) {
+    if (syscalls == null) {
+      throw new IllegalStateException("Host syscalls are not enabled");
+    }
+    syscalls[syscall.getIndex()] = handler;
+  }
+
+  // The $a0 passed to the EXIT syscall, or 0 if the program did not exit through it
+  public int getExitCode() {
+    return exitCode;
+  }
+
+  /*
+  Captures the registers, program counter, memory and decoded program text, after flushing any
+  output the devices have buffered. Device registers are part of the MMIO region and are captured
+  with the rest of memory; state a device keeps elsewhere, such as input already read from its
+  channel, is not. The machine must run on PagedMemory, whose pages the snapshot then shares
+  copy-on-write, as it does the decoded text; a fork copies the text only if the program stores
+  into it. Taking a snapshot or forking one therefore costs the page tables plus a copy of each page
+  touched afterwards, and with the block compiler enabled, a copy of its per-slot tables.
+   */
+  public MachineSnapshot snapshot() {
+    if (!(memory instanceof PagedMemory)) {
+      throw new IllegalStateException("Snapshots require paged guest memory, see "
+          + "GuestMemory.paged");
+    }
+    flushDevices();
+    return new MachineSnapshot(((PagedMemory) memory).snapshot(), registerFile.clone(),
+        programCounter, halted, exitCode, new DecodedText(text),
+        syscalls == null ? null : syscalls.clone());
+  }
+
+  // Returns to the state captured by snapshot, keeping this machine's devices and settings
+  public void restore(MachineSnapshot snapshot) {
+    boolean compile = text.compiler != null;
+    this.memory = snapshot.memory.snapshot();
+    this.registerFile = snapshot.registers.clone();
+    this.programCounter = snapshot.programCounter;
+    this.halted = snapshot.halted;
+    this.exitCode = snapshot.exitCode;
+    this.yieldRequested = false;
+    this.text = new DecodedText(snapshot.text);
+    if (!compile) {
+      text.compiler = null;
+    } else if (text.compiler == null) {
+      text.compiler = new BlockCompiler(text);
+    }
+    if (counters != null || !fusion) {
+      text.decodeAll(memory);
+    }
+  }
+
+  public boolean isHalted() {
+    return halted;
+  }
+
+  public int getProgramCounter() {
+    return programCounter;
+  }
+
+  public GuestMemory getMemory() {
+    return memory;
+  }
+
+  public int getRegister(int index) {
+    return registerFile[index];
   }
 
+  public void run() {
+    while (!halted) {
+      run(RUN_SLICE);
+    }
+  }
+
+  /*
+  Executes roughly maxInstructions instructions, stopping early if the machine halts. A fused
+  sequence or compiled block that starts inside the budget is always completed, so the count may
+  be exceeded by that many instructions. Returns the number of instructions executed.
+   */
+  public long run(long maxInstructions) {
+    final GuestMemory mem = this.memory;
+    final int[] r = this.registerFile;
+    final DecodedText text = this.text;
+    // Replaced by the text's own copy if a store or decode makes it copy shared arrays
+    int[] textPacked = text.packed;
+    int[] textOperands = text.operands;
+    final MachineCounters counters = this.counters;
+    final BlockCompiler compiler = counters == null ? text.compiler : null;
+    final HostSyscall[] syscalls = this.syscalls;
+    int pc = this.programCounter;
+    int instrPc = pc;
+    long executed = 0;
+    yieldRequested = false;
+
+    try {
+      while (executed < maxInstructions) {
+        if (pc <= MemoryStructure.RSRVD1_END) {
+          halt();
+          break;
+        }
+
+        int p;
+        int v;
+        int slot = DecodedText.slotOf(pc);
+        if (slot >= 0) {
+          if (compiler != null) {
+            CompiledBlock block = compiler.blocks[slot];
+            if (block == null && ++compiler.heat[slot] == BlockCompiler.HOT_THRESHOLD) {
+              block = compiler.compile(slot);
+            }
+            if (block != null) {
+              long result;
+              try {
+                result = block.execute(this, r, mem);
+              } catch (RuntimeException e) {
+                instrPc = (int) faultPosition;
+                pc = instrPc + 4;
+                executed += faultPosition >>> 32;
+                throw e;
+              }
+              pc = (int) result;
+              executed += result >>> 32;
+              textPacked = text.packed;
+              textOperands = text.operands;
+              if (halted) {
+                break;
+              }
+              if (yieldRequested) {
+                maxInstructions = executed;
+              }
+              continue;
+            }
+          }
+
+          p = textPacked[slot];
+          if (p == DecodedText.UNDECODED) {
+            text.decode(mem, slot);
+            textPacked = text.packed;
+            textOperands = text.operands;
+            p = textPacked[slot];
+          }
+          v = textOperands[slot];
+        } else {
+          int entry = pc - HOST_ENTRY;
+          if (syscalls != null && entry >= 0 && entry < syscalls.length << 2
+              && (entry & 3) == 0) {
+            instrPc = pc;
+            executed++;
+            trap(entry >> 2, pc);
+            pc = r[RA];
+            if (halted) {
+              break;
+            }
+            if (yieldRequested) {
+              maxInstructions = executed;
+            }
+            continue;
+          }
+
+          int w = loadWord(mem, pc);
+          p = pack(w);
+          v = operand(w);
+        }
+
+        instrPc = pc;
+        pc += 4;
+        executed++;
+
+        int a = packedA(p);
+        int b = packedB(p);
+        if (counters != null) {
+          counters.instruction(packedOp(p));
+        }
+
+        switch (packedOp(p)) {
+          case OP_LD:
+            r[a] = load(v);
+            if (yieldRequested) {
+              maxInstructions = executed;
+            }
+            break;
+          case OP_SV:
+            if (store(v, r[a])) {
+              textPacked = text.packed;
+              textOperands = text.operands;
+            }
+            break;
+          case OP_LUI:
+            r[a] = v;
+            break;
+          case OP_ADI:
+          case OP_ADS:
+            r[b] = r[a] + v;
+            break;
+          case OP_LR:
+            r[packedC(p)] = load(r[a]);
+            if (yieldRequested) {
+              maxInstructions = executed;
+            }
+            break;
+          case OP_SVR:
+            if (store(r[packedC(p)], r[a])) {
+              textPacked = text.packed;
+              textOperands = text.operands;
+            }
+            break;
+          case OP_MPC:
+            r[packedC(p)] = pc;
+            break;
+          case OP_ADD:
+            r[packedC(p)] = r[a] + r[b];
+            break;
+          case OP_NEG:
+            r[packedC(p)] = ~r[a];
+            break;
+          case OP_AND:
+            r[packedC(p)] = r[a] & r[b];
+            break;
+          case OP_OR:
+            r[packedC(p)] = r[a] | r[b];
+            break;
+          case OP_MUL: {
+            long product = (long) r[a] * r[b];
+            r[LO] = (int) product;
+            r[HI] = (int) (product >>> 32);
+            break;
+          }
+          case OP_DIV: {
+            int divisor = r[b];
+            checkDivisor(divisor, instrPc);
+            int dividend = r[a];
+            r[LO] = dividend / divisor;
+            r[HI] = dividend % divisor;
+            break;
+          }
+          case OP_SLL:
+            r[packedC(p)] = r[a] << 1;
+            break;
+          case OP_SRL:
+            r[packedC(p)] = r[a] >>> 1;
+            break;
+          case OP_SRA:
+            r[packedC(p)] = r[a] >> 1;
+            break;
+          case OP_CMP:
+            r[packedC(p)] = r[a] == r[b] ? 1 : 0;
+            break;
+          case OP_LT:
+            r[packedC(p)] = r[a] < r[b] ? 1 : 0;
+            break;
+          case OP_JRZ:
+            if (r[a] == 0) {
+              pc = r[packedC(p)];
+            }
+            if (counters != null) {
+              counters.branch(instrPc, r[a] == 0);
+            }
+            break;
+          case OP_JRN:
+            if (r[a] != 0) {
+              pc = r[packedC(p)];
+            }
+            if (counters != null) {
+              counters.branch(instrPc, r[a] != 0);
+            }
+            break;
+          case OP_JT:
+            pc = v;
+            break;
+          case OP_JR:
+            pc = r[a];
+            break;
+          case OP_JIZ:
+            if (r[a] == 0) {
+              pc = v;
+            }
+            if (counters != null) {
+              counters.branch(instrPc, r[a] == 0);
+            }
+            break;
+          case OP_JNZ:
+            if (r[a] != 0) {
+              pc = v;
+            }
+            if (counters != null) {
+              counters.branch(instrPc, r[a] != 0);
+            }
+            break;
+          case OP_TRAP:
+            trap(v, instrPc);
+            if (halted || yieldRequested) {
+              maxInstructions = executed;
+            }
+            break;
+          case OP_PUSH: {
+            int c = packedC(p);
+            r[c] += v;
+            if (store(r[c], r[a])) {
+              textPacked = text.packed;
+              textOperands = text.operands;
+            }
+            pc += 4;
+            executed += 1;
+            break;
+          }
+          case OP_POP:
+            r[packedC(p)] = load(r[a]);
+            r[a] += v;
+            if (yieldRequested) {
+              maxInstructions = executed + 1;
+            }
+            pc += 4;
+            executed += 1;
+            break;
+          case OP_SUB:
+            r[K0] = -r[b];
+            r[packedC(p)] = r[a] + r[K0];
+            pc += 12;
+            executed += 3;
+            break;
+          case OP_SUBI:
+            r[K0] = -v;
+            r[packedC(p)] = r[a] + r[K0];
+            pc += 12;
+            executed += 3;
+            break;
+          case OP_MULI: {
+            r[packedC(p)] = v;
+            long product = (long) r[a] * r[b];
+            r[LO] = (int) product;
+            r[HI] = (int) (product >>> 32);
+            pc += 4;
+            executed += 1;
+            break;
+          }
+          case OP_DIVI: {
+            r[packedC(p)] = v;
+            int divisor = r[b];
+            checkDivisor(divisor, instrPc + 4);
+            int dividend = r[a];
+            r[LO] = dividend / divisor;
+            r[HI] = dividend % divisor;
+            pc += 4;
+            executed += 1;
+            break;
+          }
+          case OP_LI32:
+            r[a] = v;
+            pc += 4;
+            executed += 1;
+            break;
+          case OP_CALL:
+            r[packedC(p)] = instrPc + 12;
+            pc = v;
+            executed += 2;
+            break;
+          case OP_CALLR:
+            r[packedC(p)] = instrPc + 12;
+            pc = r[a];
+            executed += 2;
+            break;
+          default:
+            throw new MachineException(instrPc,
+                String.format("Illegal instruction %08X", loadWord(mem, instrPc)));
+        }
+
+        // $0 is hardwired to zero; discarding writes here keeps the handlers branch free
+        r[0] = 0;
+      }
+    } catch (IndexOutOfBoundsException e) {
+      throw new MachineException(instrPc, "Memory access out of bounds");
+    } finally {
+      this.programCounter = pc;
+    }
+
+    for (IOMachine machine : ioMachines) {
+      machine.tick();
+    }
+    return executed;
+  }
+
+  // Runs the host handler of a syscall, for TRAP and the host entry points
+  void trap(int index, int pc) {
+    HostSyscall[] handlers = syscalls != null ? syscalls : DEFAULT_SYSCALLS;
+    if (index < 0 || index >= handlers.length || handlers[index] == null) {
+      throw new MachineException(pc, "No host handler for syscall " + index);
+    }
+    this.programCounter = pc;
+    handlers[index].call(this, registerFile);
+  }
+
+  // First attached device of the given class, or null
+  <T extends IOMachine> T device(Class<T> type) {
+    for (IOMachine machine : ioMachines) {
+      if (type.isInstance(machine)) {
+        return type.cast(machine);
+      }
+    }
+    return null;
+  }
+
+  // Ends the current time slice after the instruction being executed
+  void requestYield() {
+    yieldRequested = true;
+  }
+
+  void exit(int code) {
+    exitCode = code;
+    halt();
+  }
 
+  private void halt() {
+    halted = true;
+    flushDevices();
+  }
+
+  // Writes out buffered device output, as at a halt or before input is read
+  private void flushDevices() {
+    for (IOMachine machine : ioMachines) {
+      machine.flush();
+    }
+  }
+
+  static int loadWord(GuestMemory memory, int address) {
+    return memory.loadWord(address);
+  }
+
+  // Data load, giving the owning device a chance to update its mapped bytes first
+  int load(int address) {
+    if (counters != null) {
+      counters.read(address);
+    }
+    if (isMapped(address) && dispatch(address, false)) {
+      yieldRequested = true;
+    }
+    return memory.loadWord(address);
+  }
+
+  // Returns true if program text was modified
+  private boolean store(int address, int value) {
+    if (counters != null) {
+      counters.write(address);
+    }
+    memory.storeWord(address, value);
+    boolean modifiedText = text.invalidate(address);
+    if (isMapped(address)) {
+      dispatch(address, true);
+    }
+    return modifiedText;
+  }
+
+  // Store performed by a compiled block; returns true if program text was modified
+  boolean blockStore(int address, int value) {
+    memory.storeWord(address, value);
+    boolean modifiedText = text.invalidate(address);
+    if (isMapped(address)) {
+      dispatch(address, true);
+    }
+    return modifiedText;
+  }
+
+  static void checkDivisor(int divisor, int pc) {
+    if (divisor == 0) {
+      throw new MachineException(pc, "Division by zero");
+    }
+  }
+
+  private static boolean isMapped(int address) {
+    return address + 3 >= MemoryStructure.MMIO && address <= MemoryStructure.MMIO_END;
+  }
+
+  // Notifies each device owning one of the bytes of the word at address, once per device.
+  // Returns true if a device asked the machine to yield
+  private boolean dispatch(int address, boolean store) {
+    int first = Math.max(address, MemoryStructure.MMIO);
+    int last = Math.min(address + 3, MemoryStructure.MMIO_END);
+    IOMachine previous = null;
+    boolean yield = false;
+    for (int i = first; i <= last; i++) {
+      IOMachine owner = mmioOwners[i - MemoryStructure.MMIO];
+      if (owner != null && owner != previous) {
+        if (store) {
+          owner.operate(memory);
+        } else {
+          yield |= owner.beforeLoad(memory);
+        }
+        previous = owner;
+      }
+    }
+    return yield;
+  }
+
+  private static IOMachine[] mapDevices(List<IOMachine> machines) {
+    IOMachine[] owners = new IOMachine[MemoryStructure.MMIO_END - MemoryStructure.MMIO + 1];
+    for (IOMachine machine : machines) {
+      int start = machine.getMemoryMapping() - MemoryStructure.MMIO;
+      for (int i = start; i < start + machine.getMappedLength(); i++) {
+        if (owners[i] != null) {
+          throw new IllegalArgumentException(String.format(
+              "Devices %s and %s are both mapped to address %08X",
+              owners[i].getClass().getSimpleName(), machine.getClass().getSimpleName(),
+              i + MemoryStructure.MMIO));
+        }
+        owners[i] = machine;
+      }
+    }
+    return owners;
+  }
 }
@@ -0,0 +1,205 @@
+package com.jtrimble777.executor;
+
+import static com.jtrimble777.executor.DecodeTable.*;
+
+import com.jtrimble777.common.MemoryStructure;
+import com.jtrimble777.common.Register;
+import com.jtrimble777.common.SymbolTable;
+import com.jtrimble777.common.SymbolTable.Symbol;
+import com.jtrimble777.executor.memory.GuestMemory;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+Samples the program counter of a machine and folds the samples into collapsed stacks, one line
+per distinct stack with the outermost function first, as read by flamegraph.pl and speedscope:
+
+  main;fibrec;fib 412
+
+The profiler drives the machine itself in slices through SALMachine.run(long), so the interpreter
+loop carries no profiling checks. Samples are taken either every interval instructions, or on a
+timer, in which case the machine runs in short slices and a sample is taken at the end of the
+first slice after each tick.
+
+SAL has no frame pointer, so the call stack is rebuilt from what a call leaves behind: a call is
+MPC $ra + ADI $ra,8,$ra + JT/JR, which puts the address just after the jump in $ra, and callees
+that make calls of their own push $ra. Candidate return addresses are $ra followed by the words
+above $sp; a candidate is kept if it follows such a call sequence. $ra may be stale once the
+function has made a call of its own, so it is only used when its call (if a JT) targets the
+function at the program counter. Addresses outside every text symbol are shown in hex.
+ */
+public class SamplingProfiler {
+  public static final long DEFAULT_INTERVAL = 1_000;
+
+  // Instructions run between checks for a timer tick
+  private static final long TIMER_SLICE = 256;
+  // Words above $sp searched for saved return addresses
+  private static final int STACK_SCAN_LIMIT = 4096;
+
+  private static final int RA = Register.RET.getIndex();
+  private static final int SP = Register.SP.getIndex();
+
+  private final SALMachine machine;
+  private final SymbolTable symbols;
+  private final Map<String, Long> stacks;
+  private long samples;
+  private volatile boolean tick;
+
+  public SamplingProfiler(SALMachine machine, SymbolTable symbols) {
+    this.machine = machine;
+    this.symbols = symbols;
+    this.stacks = new HashMap<>();
+  }
+
+  // Runs the machine until it halts, sampling every interval instructions
+  public void runSampled(long interval) {
+    if (interval < 1) {
+      throw new IllegalArgumentException("Sampling interval must be at least 1 instruction");
+    }
+    while (!machine.isHalted()) {
+      machine.run(interval);
+      if (!machine.isHalted()) {
+        sample();
+      }
+    }
+  }
+
+  // Runs the machine until it halts, sampling every periodMillis milliseconds of wall time
+  public void runTimed(long periodMillis) {
+    if (periodMillis < 1) {
+      throw new IllegalArgumentException("Sampling period must be at least 1 millisecond");
+    }
+    Thread timer = new Thread(() -> {
+      try {
+        while (true) {
+          Thread.sleep(periodMillis);
+          tick = true;
+        }
+      } catch (InterruptedException e) {
+        // Profiling finished
+      }
+    }, "sal-profiler-timer");
+    timer.setDaemon(true);
+    timer.start();
+
+    try {
+      while (!machine.isHalted()) {
+        machine.run(TIMER_SLICE);
+        if (tick && !machine.isHalted()) {
+          tick = false;
+          sample();
+        }
+      }
+    } finally {
+      timer.interrupt();
+    }
+  }
+
+  // Records the current stack of the machine as one sample
+  public void sample() {
+    List<String> frames = stack();
+    StringBuilder key = new StringBuilder();
+    for (int i = frames.size() - 1; i >= 0; i--) {
+      key.append(frames.get(i));
+      if (i > 0) {
+        key.append(';');
+      }
+    }
+    stacks.merge(key.toString(), 1L, Long::sum);
+    samples++;
+  }
+
+  public long getSamples() {
+    return samples;
+  }
+
+  // Collapsed stacks and their sample counts, sorted by stack
+  public Map<String, Long> collapsed() {
+    return new TreeMap<>(stacks);
+  }
+
+  public void writeCollapsed(Path dest) throws IOException {
+    try (BufferedWriter out = Files.newBufferedWriter(dest)) {
+      for (Map.Entry<String, Long> entry : collapsed().entrySet()) {
+        out.write(entry.getKey() + " " + entry.getValue());
+        out.newLine();
+      }
+    }
+  }
+
+  public void reset() {
+    stacks.clear();
+    samples = 0;
+  }
+
+  // Frames of the current stack, innermost first
+  private List<String> stack() {
+    GuestMemory memory = machine.getMemory();
+    List<String> frames = new ArrayList<>();
+    int pc = machine.getProgramCounter();
+    Symbol current = symbols.lookup(pc);
+    frames.add(nameOf(current, pc));
+
+    // A function that makes calls saves $ra on entry, so the first saved return address found may
+    // be the copy of the live one
+    int ra = machine.getRegister(RA);
+    boolean liveRa = isReturnAddress(memory, ra, current);
+    if (liveRa) {
+      frames.add(nameOf(symbols.lookup(ra), ra));
+    }
+
+    // A $sp of 0 means the program never set up a stack
+    int sp = machine.getRegister(SP);
+    if (sp <= 0) {
+      return frames;
+    }
+    int limit = (int) Math.min((long) sp + STACK_SCAN_LIMIT * 4L, memory.size() - 4L);
+    for (int address = sp; address <= limit; address += 4) {
+      int candidate = SALMachine.loadWord(memory, address);
+      if (!isReturnAddress(memory, candidate, null)) {
+        continue;
+      }
+      if (!liveRa || candidate != ra) {
+        frames.add(nameOf(symbols.lookup(candidate), candidate));
+      }
+      liveRa = false;
+    }
+    return frames;
+  }
+
+  // True if address directly follows a call sequence, whose callee must be the given function
+  // unless that is null
+  private boolean isReturnAddress(GuestMemory memory, int address, Symbol callee) {
+    if ((address & 3) != (MemoryStructure.PROGRAM_TEXT_BEGIN & 3)
+        || address - 12 < MemoryStructure.PROGRAM_TEXT_BEGIN
+        || address > MemoryStructure.PROGRAM_TEXT_END) {
+      return false;
+    }
+
+    int link = SALMachine.loadWord(memory, address - 12);
+    if (op(link) != OP_MPC || packedC(pack(link)) != RA) {
+      return false;
+    }
+    int jump = SALMachine.loadWord(memory, address - 4);
+    switch (op(jump)) {
+      case OP_JT:
+        int target = operand(jump);
+        return callee == null || callee == symbols.lookup(target);
+      case OP_JR:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static String nameOf(Symbol symbol, int address) {
+    return symbol == null ? String.format("0x%08X", address) : symbol.name;
+  }
+}
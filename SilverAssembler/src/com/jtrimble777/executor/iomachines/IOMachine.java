@@ -1,6 +1,7 @@
 package com.jtrimble777.executor.iomachines;
 
 import com.jtrimble777.common.MemoryStructure;
+import com.jtrimble777.executor.memory.GuestMemory;
 
 public abstract class IOMachine {
   protected int memoryMapping;
@@ -11,5 +12,28 @@ public abstract class IOMachine {
     this.mappedLen = mappedLen;
   }
 
-  public abstract void operate(byte[] memory);
+  // Called after the program stores to any of this device's mapped bytes
+  public abstract void operate(GuestMemory memory);
+
+  // Called before the program loads from any of this device's mapped bytes. Returns true if the
+  // device is waiting on the outside world and the machine should end its current time slice
+  public boolean beforeLoad(GuestMemory memory) {
+    return false;
+  }
+
+  // Called when the machine halts; devices holding buffered output should write it out
+  public void flush() {
+  }
+
+  // Called at the end of each of the machine's time slices, for devices acting on a deadline
+  public void tick() {
+  }
+
+  public int getMemoryMapping() {
+    return memoryMapping;
+  }
+
+  public int getMappedLength() {
+    return mappedLen;
+  }
 }
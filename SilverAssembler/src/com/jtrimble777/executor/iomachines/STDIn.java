@@ -1,19 +1,110 @@
 package com.jtrimble777.executor.iomachines;
 
-import java.util.ArrayList;
-import java.util.List;
+import com.jtrimble777.executor.memory.GuestMemory;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
 
+/*
+Input device. Mapped bytes: [status, data]. Every program load that touches them consumes the
+next input byte and sets status to 1 with the byte in data, 0 if no input is available yet, or
+0xFF once the input has ended.
+
+Input is read from the channel in bulk into a ring buffer. A blocking channel blocks the machine
+until data arrives; a non-blocking channel (such as a Pipe source configured non-blocking) reports
+status 0 and asks the machine to give up the rest of its time slice instead. Before every read
+from the channel the beforeRead hook runs; the machine uses it to write out buffered program
+output, so a prompt is visible before the program waits for the answer.
+ */
 public class STDIn extends IOMachine {
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  private static final byte STATUS_EMPTY = 0;
+  private static final byte STATUS_READY = 1;
+  private static final byte STATUS_EOF = (byte) 0xFF;
 
-  private List<Byte> buffer;
+  private final ReadableByteChannel in;
+  private final byte[] buffer;
+  private final int mask;
+  // Total bytes read into / consumed from the ring; their difference is the fill level
+  private long written;
+  private long consumed;
+  private boolean endOfInput;
+  private Runnable beforeRead = () -> { };
 
   public STDIn() {
+    this(Channels.newChannel(new FileInputStream(FileDescriptor.in)), DEFAULT_BUFFER_SIZE);
+  }
+
+  // bufferSize is rounded up to a power of two
+  public STDIn(ReadableByteChannel in, int bufferSize) {
     super(1, 2);
-    buffer = new ArrayList<>();
+    this.in = in;
+    int capacity = Integer.highestOneBit(Math.max(bufferSize, 2) - 1) << 1;
+    this.buffer = new byte[capacity];
+    this.mask = capacity - 1;
+  }
+
+  public static STDIn fromFile(Path file) throws IOException {
+    return new STDIn(FileChannel.open(file), DEFAULT_BUFFER_SIZE);
+  }
+
+  // Runs before each read from the input channel, which may block
+  public void setBeforeRead(Runnable beforeRead) {
+    this.beforeRead = beforeRead;
   }
 
   @Override
-  public void operate(byte[] memory) {
+  public void operate(GuestMemory memory) {
+    // Stores to the input registers are ignored
+  }
+
+  @Override
+  public boolean beforeLoad(GuestMemory memory) {
+    int next = read();
+    memory.storeByte(memoryMapping, (byte) (next >> 8));
+    memory.storeByte(memoryMapping + 1, (byte) next);
+    return next >> 8 == STATUS_EMPTY;
+  }
+
+  /*
+  Consumes the next input byte, as a load from the mapped bytes does. Returns the status in bits
+  8-15 and the byte in bits 0-7: 0x1nn with the byte, 0 if no input is available yet, or 0xFF00
+  once the input has ended.
+   */
+  public int read() {
+    if (written == consumed && !endOfInput) {
+      fill();
+    }
+
+    if (written != consumed) {
+      return STATUS_READY << 8 | (buffer[(int) (consumed++ & mask)] & 0xFF);
+    }
+    return endOfInput ? (STATUS_EOF & 0xFF) << 8 : STATUS_EMPTY;
+  }
+
+  // Reads as much as fits into the free, contiguous part of the ring in one call
+  private void fill() {
+    int start = (int) (written & mask);
+    int free = buffer.length - (int) (written - consumed);
+    int length = Math.min(free, buffer.length - start);
 
+    beforeRead.run();
+    try {
+      int read = in.read(ByteBuffer.wrap(buffer, start, length));
+      if (read < 0) {
+        endOfInput = true;
+      } else {
+        written += read;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not read program input", e);
+    }
   }
 }
@@ -1,19 +1,95 @@
 package com.jtrimble777.executor.iomachines;
 
+import com.jtrimble777.executor.memory.GuestMemory;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+Output device. Bytes written by the program are collected, without any character encoding, in a
+buffer that is written to the output channel when it fills, when a newline is written (if
+flushOnNewline is set), when flushIntervalMillis has passed since the last write-out (if it is
+positive), before the machine reads from its input channel, and when the machine halts. The
+interval is checked on every write and at the end of every time slice, so output left in the
+buffer by a program that stops writing still goes out within about a slice of the interval.
+ */
 public class STDOut extends IOMachine {
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  private final WritableByteChannel out;
+  private final ByteBuffer buffer;
+  private final boolean flushOnNewline;
+  private final long flushIntervalNanos;
+  private long lastFlush;
 
   public STDOut() {
+    this(Channels.newChannel(new FileOutputStream(FileDescriptor.out)), DEFAULT_BUFFER_SIZE,
+        true, 0);
+  }
+
+  public STDOut(WritableByteChannel out, int bufferSize, boolean flushOnNewline,
+      long flushIntervalMillis) {
     super(0, 1);
+    this.out = out;
+    this.buffer = ByteBuffer.allocate(bufferSize);
+    this.flushOnNewline = flushOnNewline;
+    this.flushIntervalNanos = flushIntervalMillis * 1_000_000;
+    this.lastFlush = System.nanoTime();
+  }
+
+  public static STDOut toFile(Path file) throws IOException {
+    return new STDOut(FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING),
+        DEFAULT_BUFFER_SIZE, false, 0);
   }
 
   @Override
-  public void operate(byte[] memory) {
-    if (memory[memoryMapping] == 0) {
+  public void operate(GuestMemory memory) {
+    byte value = memory.loadByte(memoryMapping);
+    if (value == 0) {
       return;
-    } else {
-      char c = (char)memory[memoryMapping];
-      System.out.print(c);
-      memory[memoryMapping] = 0;
     }
+
+    memory.storeByte(memoryMapping, (byte) 0);
+    write(value);
+  }
+
+  // Writes one byte of program output, as a store to the mapped byte does
+  public void write(byte value) {
+    buffer.put(value);
+    if (!buffer.hasRemaining() || (flushOnNewline && value == '\n')
+        || (flushIntervalNanos > 0 && System.nanoTime() - lastFlush >= flushIntervalNanos)) {
+      flush();
+    }
+  }
+
+  @Override
+  public void tick() {
+    if (flushIntervalNanos > 0 && buffer.position() > 0
+        && System.nanoTime() - lastFlush >= flushIntervalNanos) {
+      flush();
+    }
+  }
+
+  @Override
+  public void flush() {
+    buffer.flip();
+    try {
+      while (buffer.hasRemaining()) {
+        out.write(buffer);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not write program output", e);
+    } finally {
+      buffer.clear();
+    }
+    lastFlush = System.nanoTime();
   }
 }
@@ -0,0 +1,56 @@
+package com.jtrimble777.executor.memory;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+
+// Guest memory held in a ByteBuffer, typically direct or memory-mapped so it lives off heap
+public class BufferMemory implements GuestMemory {
+  private final ByteBuffer buffer;
+
+  public BufferMemory(ByteBuffer buffer) {
+    this.buffer = buffer.order(ByteOrder.BIG_ENDIAN);
+  }
+
+  @Override
+  public int loadWord(int address) {
+    return buffer.getInt(address);
+  }
+
+  @Override
+  public void storeWord(int address, int value) {
+    buffer.putInt(address, value);
+  }
+
+  @Override
+  public byte loadByte(int address) {
+    return buffer.get(address);
+  }
+
+  @Override
+  public void storeByte(int address, byte value) {
+    buffer.put(address, value);
+  }
+
+  @Override
+  public void write(int address, byte[] src) {
+    buffer.put(address, src);
+  }
+
+  @Override
+  public void write(int address, ByteBuffer src) {
+    buffer.put(address, src, src.position(), src.remaining());
+  }
+
+  @Override
+  public long size() {
+    return buffer.capacity();
+  }
+
+  @Override
+  public void flush() {
+    if (buffer instanceof MappedByteBuffer) {
+      ((MappedByteBuffer) buffer).force();
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package com.jtrimble777.executor.memory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+Backing store for a machine's address space. Words are big-endian and may be unaligned. Accesses
+outside [0, size()) throw an IndexOutOfBoundsException; a memory larger than 2 GiB reads
+addresses as unsigned.
+ */
+public interface GuestMemory {
+
+  int loadWord(int address);
+
+  void storeWord(int address, int value);
+
+  byte loadByte(int address);
+
+  void storeByte(int address, byte value);
+
+  // Copies src into memory starting at address
+  void write(int address, byte[] src);
+
+  // Copies the remaining bytes of src into memory starting at address, leaving src unchanged
+  void write(int address, ByteBuffer src);
+
+  long size();
+
+  // Writes any buffered contents to their backing storage, if there is one
+  default void flush() {
+  }
+
+  static GuestMemory heap(int size) {
+    return new HeapMemory(size);
+  }
+
+  static GuestMemory direct(int size) {
+    return new BufferMemory(ByteBuffer.allocateDirect(size));
+  }
+
+  // Copy-on-write pages that can be shared with snapshots, as used by SALMachine.snapshot
+  static GuestMemory paged(int size) {
+    return new PagedMemory(size);
+  }
+
+  // The whole 32 bit address space, allocated a page at a time as the program touches it
+  static GuestMemory sparse() {
+    return new PagedMemory();
+  }
+
+  // Maps the first size bytes of file as guest memory, creating or growing the file as needed
+  static GuestMemory mapped(Path file, int size) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      return new BufferMemory(channel.map(MapMode.READ_WRITE, 0, size));
+    }
+  }
+}
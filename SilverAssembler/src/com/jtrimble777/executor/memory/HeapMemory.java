@@ -0,0 +1,52 @@
+package com.jtrimble777.executor.memory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class HeapMemory implements GuestMemory {
+  private static final VarHandle WORD =
+      MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+  private final byte[] bytes;
+
+  public HeapMemory(int size) {
+    this.bytes = new byte[size];
+  }
+
+  @Override
+  public int loadWord(int address) {
+    return (int) WORD.get(bytes, address);
+  }
+
+  @Override
+  public void storeWord(int address, int value) {
+    WORD.set(bytes, address, value);
+  }
+
+  @Override
+  public byte loadByte(int address) {
+    return bytes[address];
+  }
+
+  @Override
+  public void storeByte(int address, byte value) {
+    bytes[address] = value;
+  }
+
+  @Override
+  public void write(int address, byte[] src) {
+    System.arraycopy(src, 0, bytes, address, src.length);
+  }
+
+  @Override
+  public void write(int address, ByteBuffer src) {
+    src.duplicate().get(bytes, address, src.remaining());
+  }
+
+  @Override
+  public long size() {
+    return bytes.length;
+  }
+}
@@ -0,0 +1,246 @@
+package com.jtrimble777.executor.memory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+Sparse guest memory made of 4 KiB pages, found through a two level page table: the top 10 bits
+of an address select a table, the next 10 a page in it. Tables and pages are allocated on the
+first store that touches them, and anything never stored to reads as zeros, so a machine costs
+about as much memory as it uses. Without a size the memory covers all 2^32 addresses, reading
+them as unsigned.
+
+Each access first checks the page used by the last load and the last store, so code working
+within a page skips the table walk.
+
+Pages can be shared copy-on-write with other memories. snapshot() gives a new memory the current
+pages without copying them; after that, whichever side stores to a shared page first gets its own
+copy of that page, so a snapshot costs its page tables plus one page copy per page touched
+afterwards. A memory that only serves as a snapshot is never written, so any number of threads
+may take snapshots of it at once. Every other use is confined to one thread, like the other
+memories.
+ */
+public class PagedMemory implements GuestMemory {
+  public static final int PAGE_SHIFT = 12;
+  public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+  public static final long ADDRESS_SPACE = 1L << 32;
+
+  private static final int OFFSET_MASK = PAGE_SIZE - 1;
+  private static final int TABLE_SHIFT = 10;
+  private static final int TABLE_SIZE = 1 << TABLE_SHIFT;
+  private static final int TABLE_MASK = TABLE_SIZE - 1;
+  // Read through for pages that have not been allocated; never written
+  private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
+
+  private static final VarHandle WORD =
+      MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+  private final long size;
+  // Null for a table or page that has never been written
+  private final byte[][][] tables;
+  // Pages this memory may write in place; all others are shared, or not allocated yet
+  private final boolean[][] owned;
+
+  // Page number and contents of the pages last loaded from and stored to. The store page is
+  // always owned
+  private int loadTag = -1;
+  private byte[] loadPage;
+  private int storeTag = -1;
+  private byte[] storePage;
+
+  private long allocatedPages;
+  private long copiedPages;
+
+  public PagedMemory() {
+    this(ADDRESS_SPACE);
+  }
+
+  public PagedMemory(long size) {
+    if (size <= 0 || size > ADDRESS_SPACE || (size & OFFSET_MASK) != 0) {
+      throw new IllegalArgumentException("Paged memory size must be a positive multiple of "
+          + PAGE_SIZE + " bytes, up to 2^32");
+    }
+    this.size = size;
+    int tableCount = (int) (((size >> PAGE_SHIFT) + TABLE_MASK) >> TABLE_SHIFT);
+    this.tables = new byte[tableCount][][];
+    this.owned = new boolean[tableCount][];
+  }
+
+  // Shares every page of source; only the tables themselves are copied
+  private PagedMemory(PagedMemory source) {
+    this.size = source.size;
+    this.tables = new byte[source.tables.length][][];
+    this.owned = new boolean[source.tables.length][];
+    for (int t = 0; t < tables.length; t++) {
+      if (source.tables[t] != null) {
+        tables[t] = source.tables[t].clone();
+      }
+    }
+  }
+
+  // A memory with the current contents of this one, sharing every page with it
+  public PagedMemory snapshot() {
+    for (int t = 0; t < owned.length; t++) {
+      if (owned[t] != null) {
+        owned[t] = null;
+      }
+    }
+    storeTag = -1;
+    storePage = null;
+    return new PagedMemory(this);
+  }
+
+  // Pages allocated because a store touched them for the first time
+  public long getAllocatedPages() {
+    return allocatedPages;
+  }
+
+  // Pages copied because they were shared when stored to
+  public long getCopiedPages() {
+    return copiedPages;
+  }
+
+  @Override
+  public int loadWord(int address) {
+    int offset = address & OFFSET_MASK;
+    if (address >>> PAGE_SHIFT == loadTag && offset <= PAGE_SIZE - 4) {
+      return (int) WORD.get(loadPage, offset);
+    }
+    return loadWordSlow(address);
+  }
+
+  @Override
+  public void storeWord(int address, int value) {
+    int offset = address & OFFSET_MASK;
+    if (address >>> PAGE_SHIFT == storeTag && offset <= PAGE_SIZE - 4) {
+      WORD.set(storePage, offset, value);
+    } else {
+      storeWordSlow(address, value);
+    }
+  }
+
+  @Override
+  public byte loadByte(int address) {
+    byte[] page = address >>> PAGE_SHIFT == loadTag ? loadPage : readable(address);
+    return page[address & OFFSET_MASK];
+  }
+
+  @Override
+  public void storeByte(int address, byte value) {
+    byte[] page = address >>> PAGE_SHIFT == storeTag ? storePage : writable(address);
+    page[address & OFFSET_MASK] = value;
+  }
+
+  @Override
+  public void write(int address, byte[] src) {
+    write(address, ByteBuffer.wrap(src));
+  }
+
+  @Override
+  public void write(int address, ByteBuffer src) {
+    int length = src.remaining();
+    if (length == 0) {
+      return;
+    }
+    checkAddress(address);
+    if (Integer.toUnsignedLong(address) + length > size) {
+      throw new IndexOutOfBoundsException("Write of " + length + " bytes at " + address
+          + " runs past the end of guest memory");
+    }
+
+    ByteBuffer in = src.duplicate();
+    while (in.hasRemaining()) {
+      int offset = address & OFFSET_MASK;
+      int chunk = Math.min(in.remaining(), PAGE_SIZE - offset);
+      in.get(writable(address), offset, chunk);
+      address += chunk;
+    }
+  }
+
+  @Override
+  public long size() {
+    return size;
+  }
+
+  // Kept out of loadWord and storeWord so that those stay small enough to be inlined
+  private int loadWordSlow(int address) {
+    int offset = address & OFFSET_MASK;
+    if (offset <= PAGE_SIZE - 4) {
+      return (int) WORD.get(readable(address), offset);
+    }
+    checkWord(address);
+    return (loadByte(address) & 0xFF) << 24 | (loadByte(address + 1) & 0xFF) << 16
+        | (loadByte(address + 2) & 0xFF) << 8 | (loadByte(address + 3) & 0xFF);
+  }
+
+  private void storeWordSlow(int address, int value) {
+    int offset = address & OFFSET_MASK;
+    if (offset <= PAGE_SIZE - 4) {
+      WORD.set(writable(address), offset, value);
+      return;
+    }
+    // Straddles two pages; check the second one first so a failed store changes nothing
+    checkWord(address);
+    storeByte(address, (byte) (value >>> 24));
+    storeByte(address + 1, (byte) (value >>> 16));
+    storeByte(address + 2, (byte) (value >>> 8));
+    storeByte(address + 3, (byte) value);
+  }
+
+  private byte[] readable(int address) {
+    checkAddress(address);
+    int number = address >>> PAGE_SHIFT;
+    byte[][] table = tables[number >>> TABLE_SHIFT];
+    byte[] page = table == null ? null : table[number & TABLE_MASK];
+    loadTag = number;
+    loadPage = page == null ? ZERO_PAGE : page;
+    return loadPage;
+  }
+
+  private byte[] writable(int address) {
+    checkAddress(address);
+    int number = address >>> PAGE_SHIFT;
+    int t = number >>> TABLE_SHIFT;
+    int i = number & TABLE_MASK;
+    if (tables[t] == null) {
+      tables[t] = new byte[TABLE_SIZE][];
+    }
+    if (owned[t] == null) {
+      owned[t] = new boolean[TABLE_SIZE];
+    }
+
+    byte[] page = tables[t][i];
+    if (!owned[t][i]) {
+      if (page == null) {
+        page = new byte[PAGE_SIZE];
+        allocatedPages++;
+      } else {
+        page = page.clone();
+        copiedPages++;
+      }
+      tables[t][i] = page;
+      owned[t][i] = true;
+    }
+
+    // The load side may still hold the zero page or the shared copy
+    loadTag = storeTag = number;
+    loadPage = storePage = page;
+    return page;
+  }
+
+  // The last byte of a word at the top of a 2^32 byte memory would wrap around to address 0
+  private void checkWord(int address) {
+    if (Integer.toUnsignedLong(address) + 3 >= size) {
+      throw new IndexOutOfBoundsException("Word at " + address
+          + " runs past the end of guest memory");
+    }
+  }
+
+  private void checkAddress(int address) {
+    if (Integer.toUnsignedLong(address) >= size) {
+      throw new IndexOutOfBoundsException("Address " + address + " is outside guest memory");
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package com.jtrimble777.assembler;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+Checks that the single streaming pass writes the same bytes whether it reads a file or a reader,
+that errors found while reading name the line they are on, and that the parallel and incremental
+assembly paths write exactly the bytes a serial, full assembly of the same source does.
+ */
+class AssemblerTest {
+  private static final String[] BODY = {
+      "  ADI $t0 %d $t1",
+      "  ADD $t1 $t2 $t3",
+      "  LUI %d $a0",
+      "  SBI $a0 %d $a1",
+      "  PSH $ra",
+      "  POP $ra",
+      "  MLI $t4 %d",
+      "  JAL fn%d",
+      "  JIZ $t5 fn%d",
+      "  LT $s0 $s1 $s2",
+      "  LD value%d $t6",
+  };
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void fileMatchesReader() throws IOException {
+    String source = synthetic(50);
+    Path file = dir.resolve("program.s");
+    Files.writeString(file, source);
+
+    Assembler assembler = new Assembler(file.toFile(), false);
+    assembler.assemble();
+    File out = dir.resolve("file.o").toFile();
+    assembler.writeToFile(out);
+
+    assertArrayEquals(assemble(source, null, null), Files.readAllBytes(out.toPath()));
+  }
+
+  @Test
+  void parallelMatchesSerial() throws IOException {
+    String source = synthetic(200);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      assertArrayEquals(assemble(source, null, null), assemble(source, pool, null));
+      assertArrayEquals(object(source, null), object(source, pool));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  void incrementalMatchesFull() throws IOException {
+    String source = synthetic(100);
+    File cacheFile = dir.resolve("program.cache").toFile();
+    SegmentCache cache = SegmentCache.open(cacheFile);
+    assertArrayEquals(assemble(source, null, null), assemble(source, null, cache));
+    cache.save();
+
+    // One function gets a different operand and a line more, moving every function after it
+    String edited = source.replace("fn7 {\n", "fn7 {\n  ADI $t0 1 $t0\n  LUI 99 $a0\n");
+    cache = SegmentCache.open(cacheFile);
+    byte[] incremental = assemble(edited, null, cache);
+    assertArrayEquals(assemble(edited, null, null), incremental);
+    assertEquals(1, cache.getMisses());
+    assertTrue(cache.getHits() + cache.getPatches() > 0);
+  }
+
+  @Test
+  void errorsNameTheirLine() {
+    String source = String.join("\n",
+        "main {",
+        "  LI 1 $t0",
+        "  ADD $t0 $t9 $t1",
+        "  JR $0",
+        "}");
+    AssemblyException error =
+        assertThrows(AssemblyException.class, () -> assemble(source, null, null));
+    // Lines are numbered from 0, as they always have been
+    assertTrue(error.getMessage().contains("line #2"), error.getMessage());
+    assertTrue(error.getMessage().contains("$t9"), error.getMessage());
+  }
+
+  // main and the given number of functions calling each other and loading from a data segment
+  static String synthetic(int functions) {
+    Random random = new Random(functions);
+    StringBuilder out = new StringBuilder();
+    out.append("data {\n");
+    for (int d = 0; d < 16; d++) {
+      out.append("  int value").append(d).append(' ').append(random.nextInt(1000)).append('\n');
+    }
+    out.append("}\n");
+    out.append("main {\n  JAL fn0\n  JR $0\n}\n");
+
+    for (int f = 0; f < functions; f++) {
+      out.append("fn").append(f).append(" {\n");
+      for (int l = 0; l < 40; l++) {
+        String line = BODY[random.nextInt(BODY.length)];
+        int operand;
+        if (line.contains("fn")) {
+          operand = random.nextInt(functions);
+        } else if (line.contains("value")) {
+          operand = random.nextInt(16);
+        } else {
+          operand = random.nextInt(1000);
+        }
+        out.append(String.format(line, operand)).append('\n');
+      }
+      out.append("  RET\n}\n");
+    }
+    return out.toString();
+  }
+
+  private byte[] assemble(String source, ForkJoinPool pool, SegmentCache cache)
+      throws IOException {
+    Assembler assembler = new Assembler(new StringReader(source), false);
+    assembler.setPool(pool);
+    assembler.setCache(cache);
+    assembler.assemble();
+    File out = Files.createTempFile(dir, "program", ".o").toFile();
+    assembler.writeToFile(out);
+    return Files.readAllBytes(out.toPath());
+  }
+
+  private byte[] object(String source, ForkJoinPool pool) throws IOException {
+    Assembler assembler = new Assembler(new StringReader(source), false);
+    assembler.setPool(pool);
+    assembler.setRelocatable(true);
+    assembler.assemble();
+    File out = Files.createTempFile(dir, "program", ".obj").toFile();
+    assembler.writeObject(out);
+    return Files.readAllBytes(out.toPath());
+  }
+}
@@ -0,0 +1,77 @@
+package com.jtrimble777.assembler;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+Checks the bytes ExecutableGenerator writes against the documented format, and that it only logs
+the words it writes when asked to.
+ */
+class ExecutableGeneratorTest {
+  @TempDir
+  Path dir;
+
+  @Test
+  void writesTheDocumentedLayout() throws IOException {
+    File file = dir.resolve("both.o").toFile();
+    ExecutableGenerator.writeExecutable(file, new int[] {0xCAFEBABE, 7}, new byte[] {9, 8, 7},
+        false);
+
+    ByteBuffer expected = ByteBuffer.allocate(28 + 3 + 8)
+        .putInt(0).putShort((short) 8).putShort((short) 16)
+        .putInt(28).putInt(3)
+        .putInt(31).putInt(2).putInt(0)
+        .put(new byte[] {9, 8, 7})
+        .putInt(0xCAFEBABE).putInt(7);
+    assertArrayEquals(expected.array(), Files.readAllBytes(file.toPath()));
+
+    File textOnly = dir.resolve("text.o").toFile();
+    ExecutableGenerator.writeExecutable(textOnly, new int[] {1}, new byte[0], false);
+    expected = ByteBuffer.allocate(20 + 4)
+        .putInt(0).putShort((short) 0).putShort((short) 8)
+        .putInt(20).putInt(1).putInt(0)
+        .putInt(1);
+    assertArrayEquals(expected.array(), Files.readAllBytes(textOnly.toPath()));
+  }
+
+  @Test
+  void listsMatchArraysAndOverwriteLongerFiles() throws IOException {
+    File fromArrays = dir.resolve("arrays.o").toFile();
+    File fromLists = dir.resolve("lists.o").toFile();
+    // A longer file left behind must be truncated
+    Files.write(fromLists.toPath(), new byte[100]);
+    ExecutableGenerator.writeExecutable(fromArrays, new int[] {3, -4, 5}, new byte[] {-1, 2},
+        false);
+    ExecutableGenerator.writeExecutable(fromLists, List.of(3, -4, 5), List.of((byte) -1, (byte) 2));
+    assertArrayEquals(Files.readAllBytes(fromArrays.toPath()),
+        Files.readAllBytes(fromLists.toPath()));
+  }
+
+  @Test
+  void logsWordsOnlyWhenVerbose() throws IOException {
+    File file = dir.resolve("log.o").toFile();
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    PrintStream out = System.out;
+    System.setOut(new PrintStream(log, true));
+    try {
+      ExecutableGenerator.writeExecutable(file, new int[] {1, 2}, new byte[0], false);
+      assertEquals("", log.toString());
+      ExecutableGenerator.writeExecutable(file, new int[] {1, 0xABCDEF12}, new byte[0], true);
+    } finally {
+      System.setOut(out);
+    }
+    assertEquals(List.of("Writing command 00000001", "Writing command ABCDEF12"),
+        log.toString().lines().toList());
+  }
+}
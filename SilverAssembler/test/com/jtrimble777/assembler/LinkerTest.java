@@ -0,0 +1,155 @@
+package com.jtrimble777.assembler;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.jtrimble777.common.MemoryStructure;
+import com.jtrimble777.executor.ProgramLoader;
+import com.jtrimble777.executor.SALMachine;
+import com.jtrimble777.executor.memory.GuestMemory;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+Checks that linking the objects of a program split over several sources writes the same
+executable as assembling the sources concatenated, with main's source first, and that the linked
+program runs.
+ */
+class LinkerTest {
+  // Exits with fib(10) + scale + bias, loading both labels from the data
+  private static final String MAIN = String.join("\n",
+      "data {",
+      "  int bias 3",
+      "  string greet \"hi\"",
+      "}",
+      "main {",
+      "  LI 10 $a0",
+      "  JAL fib",
+      "  LD scale $t0",
+      "  ADD $v0 $t0 $v0",
+      "  LD bias $t0",
+      "  ADD $v0 $t0 $a0",
+      "  SYS OS_EXIT",
+      "}");
+
+  private static final String LIB = String.join("\n",
+      "data {",
+      "  int scale 100",
+      "  reserve buf 8",
+      "}",
+      "fib {",
+      "  LI 2 $t0",
+      "  LT $a0 $t0 $t0",
+      "  JIZ $t0 fibrec",
+      "  MV $a0 $v0",
+      "  RET",
+      "}",
+      "fibrec {",
+      "  PSH $ra",
+      "  PSH $a0",
+      "  ADS $a0 -1 $a0",
+      "  JAL fib",
+      "  POP $a0",
+      "  PSH $v0",
+      "  ADS $a0 -2 $a0",
+      "  JAL fib",
+      "  POP $t0",
+      "  ADD $v0 $t0 $v0",
+      "  LD bias $t1",
+      "  POP $ra",
+      "  RET",
+      "}");
+
+  // MAIN and LIB as one source: the data segments merged, then the functions in order
+  private static final String ALL = String.join("\n",
+      "data {",
+      "  int bias 3",
+      "  string greet \"hi\"",
+      "  int scale 100",
+      "  reserve buf 8",
+      "}",
+      MAIN.substring(MAIN.indexOf("main {")),
+      LIB.substring(LIB.indexOf("fib {")));
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void linkMatchesSingleSource() throws IOException {
+    Linker linker = new Linker(false);
+    // Added library first; the object defining main is still laid out first
+    linker.add("lib.s", object(LIB));
+    linker.add("main.s", object(MAIN));
+    linker.link();
+
+    byte[] linked = write(linker);
+    assertArrayEquals(assemble(ALL), linked);
+    assertEquals(55 + 100 + 3, run(linked));
+  }
+
+  @Test
+  void parallelLinkMatchesSingleSource() throws IOException {
+    String source = AssemblerTest.synthetic(240);
+    // Sources of ten functions each, the first also holding the data and main
+    String[] parts = source.split("(?=\nfn\\d+0 \\{)");
+    assertEquals(24, parts.length);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      Linker linker = new Linker(false);
+      linker.setPool(pool);
+      for (int p = 0; p < parts.length; p++) {
+        linker.add("part" + p + ".s", object(parts[p]));
+      }
+      linker.link();
+
+      assertArrayEquals(assemble(source), write(linker));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  void undefinedSymbolIsReported() throws IOException {
+    Linker linker = new Linker(false);
+    linker.add("main.s", object(MAIN));
+    assertThrows(AssemblyException.class, linker::link);
+  }
+
+  private static ObjectFile object(String source) throws IOException {
+    Assembler assembler = new Assembler(new StringReader(source), false);
+    assembler.setRelocatable(true);
+    assembler.assemble();
+    return assembler.toObject();
+  }
+
+  private byte[] assemble(String source) throws IOException {
+    Assembler assembler = new Assembler(new StringReader(source), false);
+    assembler.assemble();
+    File out = Files.createTempFile(dir, "single", ".o").toFile();
+    assembler.writeToFile(out);
+    return Files.readAllBytes(out.toPath());
+  }
+
+  // Runs the executable with host syscalls and returns its exit code
+  private int run(byte[] executable) throws IOException {
+    Path file = Files.write(dir.resolve("run.o"), executable);
+    SALMachine machine = new SALMachine(GuestMemory.heap(MemoryStructure.MEMORY_SIZE));
+    machine.enableHostSyscalls();
+    machine.load(ProgramLoader.loadProgram(file.toFile()));
+    machine.run();
+    return machine.getExitCode();
+  }
+
+  private byte[] write(Linker linker) throws IOException {
+    File out = Files.createTempFile(dir, "linked", ".o").toFile();
+    linker.writeToFile(out);
+    return Files.readAllBytes(out.toPath());
+  }
+}
@@ -0,0 +1,182 @@
+package com.jtrimble777.common;
+
+import static com.jtrimble777.common.InstructionType.InstructionComponent.DEST_REGISTER;
+import static com.jtrimble777.common.InstructionType.InstructionComponent.IMMEDIATE;
+import static com.jtrimble777.common.InstructionType.InstructionComponent.INSTRUCTION;
+import static com.jtrimble777.common.InstructionType.InstructionComponent.REGISTER_A;
+import static com.jtrimble777.common.InstructionType.InstructionComponent.REGISTER_B;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.jtrimble777.common.InstructionType.InstructionComponent;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+
+/*
+Checks the precompiled templates against the Map based InstructionType encoders the old per
+instruction encoders were built on, with the operand layout each base instruction had there, and
+checks that pseudo instructions expand to the encodings of their steps.
+ */
+class InstructionSetTest {
+  // Marks an operand that the old encoders took as a signed immediate
+  private static final InstructionComponent SIGNED = null;
+
+  // Base instruction: the InstructionType field of each operand, in source order
+  private static final Map<InstructionSet, InstructionComponent[]> LAYOUTS = new HashMap<>();
+  private static final Map<InstructionSet, Integer> CODES = new HashMap<>();
+
+  static {
+    layout(InstructionSet.LD, 1, IMMEDIATE, REGISTER_A);
+    layout(InstructionSet.LR, 0, REGISTER_A, DEST_REGISTER);
+    layout(InstructionSet.ADD, 3, REGISTER_A, REGISTER_B, DEST_REGISTER);
+    layout(InstructionSet.ADI, 4, REGISTER_A, IMMEDIATE, REGISTER_B);
+    layout(InstructionSet.ADS, 5, REGISTER_A, SIGNED, REGISTER_B);
+    layout(InstructionSet.SV, 2, REGISTER_A, IMMEDIATE);
+    layout(InstructionSet.SVR, 1, REGISTER_A, DEST_REGISTER);
+    layout(InstructionSet.MPC, 2, DEST_REGISTER);
+    layout(InstructionSet.LUI, 3, IMMEDIATE, REGISTER_A);
+    layout(InstructionSet.NEG, 4, REGISTER_A, DEST_REGISTER);
+    layout(InstructionSet.AND, 5, REGISTER_A, REGISTER_B, DEST_REGISTER);
+    layout(InstructionSet.OR, 6, REGISTER_A, REGISTER_B, DEST_REGISTER);
+    layout(InstructionSet.MUL, 7, REGISTER_A, REGISTER_B);
+    layout(InstructionSet.DIV, 8, REGISTER_A, REGISTER_B);
+    layout(InstructionSet.SLL, 9, REGISTER_A, DEST_REGISTER);
+    layout(InstructionSet.SRL, 10, REGISTER_A, DEST_REGISTER);
+    layout(InstructionSet.SRA, 11, REGISTER_A, DEST_REGISTER);
+    layout(InstructionSet.CMP, 12, REGISTER_A, REGISTER_B, DEST_REGISTER);
+    layout(InstructionSet.LT, 13, REGISTER_A, REGISTER_B, DEST_REGISTER);
+    layout(InstructionSet.JT, 8, IMMEDIATE);
+    layout(InstructionSet.JR, 9, REGISTER_A);
+    layout(InstructionSet.JIZ, 10, REGISTER_A, IMMEDIATE);
+    layout(InstructionSet.JNZ, 11, REGISTER_A, IMMEDIATE);
+    layout(InstructionSet.JRZ, 14, REGISTER_A, DEST_REGISTER);
+    layout(InstructionSet.JRN, 15, REGISTER_A, DEST_REGISTER);
+    layout(InstructionSet.TRAP, 12, IMMEDIATE);
+  }
+
+  @Test
+  void baseInstructionsMatchTheMapEncoders() {
+    Random random = new Random(17);
+    for (InstructionSet instruction : InstructionSet.values()) {
+      if (instruction.getType() == InstructionType.PSEUDO) {
+        continue;
+      }
+      InstructionComponent[] layout = LAYOUTS.get(instruction);
+      assertTrue(layout != null, instruction + " has no reference layout");
+      assertEquals(1, instruction.trueSize(), instruction.name());
+
+      for (int n = 0; n < 1000; n++) {
+        int[] operands = new int[layout.length];
+        Map<InstructionComponent, Integer> fields = new EnumMap<>(InstructionComponent.class);
+        for (InstructionComponent component : InstructionComponent.values()) {
+          fields.put(component, 0);
+        }
+        fields.put(INSTRUCTION, CODES.get(instruction));
+        for (int o = 0; o < layout.length; o++) {
+          if (layout[o] == SIGNED) {
+            operands[o] = random.nextInt(1 << 16) - (1 << 15);
+            fields.put(IMMEDIATE, operands[o]);
+          } else if (layout[o] == IMMEDIATE) {
+            operands[o] = random.nextInt(
+                instruction.getType() == InstructionType.STYPE ? 1 << 23 : 1 << 16);
+            fields.put(IMMEDIATE, operands[o]);
+          } else {
+            operands[o] = random.nextInt(32);
+            fields.put(layout[o], operands[o]);
+          }
+        }
+
+        int expected = instruction.getType().encode(fields);
+        assertArrayEquals(new int[] {expected}, instruction.encode(operands),
+            instruction + " " + Arrays.toString(operands));
+      }
+    }
+  }
+
+  @Test
+  void pseudoInstructionsExpandToTheirSteps() {
+    int os = MemoryStructure.OS_TABLE;
+    check(InstructionSet.LRO, new int[] {3, 40, 9},
+        InstructionSet.ADI.encode(3, 40, 7), InstructionSet.LR.encode(7, 9));
+    check(InstructionSet.SI, new int[] {65, 200},
+        InstructionSet.ADI.encode(0, 65, 7), InstructionSet.SV.encode(7, 200));
+    check(InstructionSet.MV, new int[] {4, 5}, InstructionSet.ADD.encode(0, 4, 5));
+    check(InstructionSet.LI, new int[] {1234, 9}, InstructionSet.ADI.encode(0, 1234, 9));
+    check(InstructionSet.SUB, new int[] {3, 4, 5},
+        InstructionSet.ADD.encode(0, 4, 7), InstructionSet.NEG.encode(7, 7),
+        InstructionSet.ADI.encode(7, 1, 7), InstructionSet.ADD.encode(3, 7, 5));
+    check(InstructionSet.SBS, new int[] {3, -20, 5},
+        InstructionSet.ADS.encode(0, -20, 7), InstructionSet.NEG.encode(7, 7),
+        InstructionSet.ADI.encode(7, 1, 7), InstructionSet.ADD.encode(3, 7, 5));
+    check(InstructionSet.DVI, new int[] {10, 7000},
+        InstructionSet.ADI.encode(0, 7000, 7), InstructionSet.DIV.encode(10, 7));
+    check(InstructionSet.PSH, new int[] {27},
+        InstructionSet.ADS.encode(25, -4, 25), InstructionSet.SVR.encode(27, 25));
+    // A nested pseudo contributes all of its words
+    check(InstructionSet.PSI, new int[] {99},
+        InstructionSet.ADS.encode(25, -4, 25), InstructionSet.SIR.encode(99, 25));
+    check(InstructionSet.POP, new int[] {3},
+        InstructionSet.LR.encode(25, 3), InstructionSet.ADI.encode(25, 4, 25));
+    check(InstructionSet.JAL, new int[] {321},
+        InstructionSet.MPC.encode(27), InstructionSet.ADI.encode(27, 8, 27),
+        InstructionSet.JT.encode(321));
+    // The comparison register is tested, not the offset
+    check(InstructionSet.BIZ, new int[] {12, 24},
+        InstructionSet.MPC.encode(7), InstructionSet.ADI.encode(7, 24, 7),
+        InstructionSet.JRZ.encode(12, 7));
+    check(InstructionSet.BZL, new int[] {12, 24},
+        InstructionSet.MPC.encode(27), InstructionSet.ADI.encode(27, 16, 27),
+        InstructionSet.BIZ.encode(12, 24));
+    check(InstructionSet.BRL, new int[] {12, 13},
+        InstructionSet.MPC.encode(27), InstructionSet.ADI.encode(27, 16, 27),
+        InstructionSet.BRZ.encode(12, 13));
+    check(InstructionSet.RET, new int[0], InstructionSet.JR.encode(27));
+    check(InstructionSet.NO, new int[0], InstructionSet.SLL.encode(0, 0));
+    check(InstructionSet.SYS, new int[] {2},
+        InstructionSet.ADI.encode(0, 2, 7), InstructionSet.ADD.encode(7, 7, 7),
+        InstructionSet.ADD.encode(7, 7, 7), InstructionSet.LUI.encode(os >> 16, 8),
+        InstructionSet.ADI.encode(8, os % 65536, 8), InstructionSet.ADD.encode(7, 8, 7),
+        InstructionSet.LR.encode(7, 8), InstructionSet.MPC.encode(27),
+        InstructionSet.ADI.encode(27, 8, 27), InstructionSet.JR.encode(8));
+  }
+
+  @Test
+  void operandsAreChecked() {
+    assertThrows(IllegalArgumentException.class, () -> InstructionSet.ADD.encode(1, 2, 32));
+    assertThrows(IllegalArgumentException.class, () -> InstructionSet.ADD.encode(-1, 2, 3));
+    assertThrows(IllegalArgumentException.class, () -> InstructionSet.ADI.encode(1, -1, 2));
+    assertThrows(IllegalArgumentException.class, () -> InstructionSet.ADI.encode(1, 65536, 2));
+    assertThrows(IllegalArgumentException.class, () -> InstructionSet.ADS.encode(1, -32769, 2));
+    assertThrows(IllegalArgumentException.class, () -> InstructionSet.JT.encode(1 << 23));
+    // Through a pseudo instruction too
+    assertThrows(IllegalArgumentException.class, () -> InstructionSet.LI.encode(70000, 1));
+    assertThrows(IllegalArgumentException.class, () -> InstructionSet.PSH.encode(40));
+
+    IllegalArgumentException count = assertThrows(IllegalArgumentException.class,
+        () -> InstructionSet.ADD.encode(1, 2));
+    assertTrue(count.getMessage().contains("Expected 3 arguments but found 2"),
+        count.getMessage());
+    assertThrows(IllegalArgumentException.class, () -> InstructionSet.JAL.encode());
+  }
+
+  private static void layout(InstructionSet instruction, int code,
+      InstructionComponent... operands) {
+    LAYOUTS.put(instruction, operands);
+    CODES.put(instruction, code);
+  }
+
+  private static void check(InstructionSet instruction, int[] operands, int[]... steps) {
+    int[] expected = IntStream.range(0, steps.length)
+        .flatMap(s -> IntStream.of(steps[s]))
+        .toArray();
+    assertEquals(expected.length, instruction.trueSize(), instruction.name());
+    assertArrayEquals(expected, instruction.encode(operands), instruction.name());
+  }
+}
@@ -0,0 +1,71 @@
+package com.jtrimble777.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.Locale;
+import org.junit.jupiter.api.Test;
+
+/*
+Checks the case-insensitive name tables behind InstructionSet.match and Register.match, including
+names whose hashes collide outright.
+ */
+class NameTableTest {
+  // Register names by index
+  private static final String[] REGISTERS = {
+      "0", "v0", "v1", "a0", "a1", "a2", "a3", "k0", "k1", "t0", "t1", "t2", "t3", "t4", "t5", "t6",
+      "t7", "s0", "s1", "s2", "s3", "s4", "s5", "s6", "s7", "sp", "fp", "ra", "bp", "lo", "hi", "flg"
+  };
+
+  @Test
+  void everyMnemonicAndRegisterMatchesInAnyCase() {
+    for (InstructionSet instruction : InstructionSet.values()) {
+      String name = instruction.name();
+      assertSame(instruction, InstructionSet.match(name));
+      assertSame(instruction, InstructionSet.match(name.toLowerCase(Locale.ROOT)));
+      assertSame(instruction, InstructionSet.match("  " + name + " $t0", 2, 2 + name.length()));
+    }
+    for (int index = 0; index < REGISTERS.length; index++) {
+      String name = REGISTERS[index];
+      assertEquals(index, Register.match(name).getIndex());
+      assertEquals(index, Register.match(name.toUpperCase(Locale.ROOT)).getIndex());
+      assertEquals(index, Register.match("$" + name + ",", 1, 1 + name.length()).getIndex());
+    }
+  }
+
+  @Test
+  void nonNamesMiss() {
+    assertNull(InstructionSet.match("ADDX"));
+    assertNull(InstructionSet.match("AD"));
+    assertNull(InstructionSet.match(""));
+    assertNull(InstructionSet.match(null));
+    assertNull(InstructionSet.match("ADD", 0, 2));
+    assertNull(Register.match("t8"));
+    assertNull(Register.match("ra "));
+  }
+
+  @Test
+  void collidingHashesAreProbed() {
+    // Equal hashes once case is folded: 31 * 'B' + 'B' == 31 * 'C' + '#' == 31 * 'D' + 4
+    String[] keys = {"BB", "C#", "D\u0004", "other"};
+    Integer[] values = {1, 2, 3, 4};
+    NameTable<Integer> table = new NameTable<>(keys, values);
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals(values[i], table.get(keys[i]));
+    }
+    assertEquals(1, table.get("bb"));
+    assertEquals(4, table.get("OTHER"));
+    assertNull(table.get("Bb#"));
+    assertNull(table.get("CB"));
+    assertNull(table.get("E\u0004"));
+  }
+
+  @Test
+  void firstOfDuplicateNamesWins() {
+    NameTable<Integer> table = new NameTable<>(new String[] {"name", "NAME", "Name"},
+        new Integer[] {1, 2, 3});
+    assertEquals(1, table.get("name"));
+    assertEquals(1, table.get("NAME"));
+  }
+}
@@ -0,0 +1,337 @@
+package com.jtrimble777.executor;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.jtrimble777.assembler.Assembler;
+import com.jtrimble777.common.MemoryStructure;
+import com.jtrimble777.executor.iomachines.STDIn;
+import com.jtrimble777.executor.iomachines.STDOut;
+import com.jtrimble777.executor.memory.GuestMemory;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/*
+Runs the same programs on every execution tier and checks that they end in the same state: all
+registers, the program counter, the output written and the exit code. Each program loops well past
+BlockCompiler.HOT_THRESHOLD so that the compiled tier runs most of it as blocks.
+ */
+@Timeout(30)
+class ExecutionTiersTest {
+  enum Tier { INTERPRETER, FUSED, COMPILED, COUNTERS }
+
+  // Recursive fib(18) through the fused push/pop and call sequences, printed in decimal with the
+  // least significant digit first
+  private static final String FIB = String.join("\n",
+      "main {",
+      "  LI 18 $a0",
+      "  JAL fib",
+      "  MV $v0 $s0",
+      "  MV $v0 $a0",
+      "  JAL printi",
+      "  ANI $s0 127 $a0",
+      "  SYS OS_EXIT",
+      "}",
+      "fib {",
+      "  LI 2 $t0",
+      "  LT $a0 $t0 $t0",
+      "  JIZ $t0 fibrec",
+      "  MV $a0 $v0",
+      "  RET",
+      "}",
+      "fibrec {",
+      "  PSH $ra",
+      "  PSH $a0",
+      "  ADS $a0 -1 $a0",
+      "  JAL fib",
+      "  POP $a0",
+      "  PSH $v0",
+      "  ADS $a0 -2 $a0",
+      "  JAL fib",
+      "  POP $t0",
+      "  ADD $v0 $t0 $v0",
+      "  POP $ra",
+      "  RET",
+      "}",
+      "printi {",
+      "  PSH $ra",
+      "  DVI $a0 10",
+      "  ADI $hi 48 $a0",
+      "  SYS OS_PRINT",
+      "  BIZ $lo 3",
+      "  MV $lo $a0",
+      "  JAL printi",
+      "  POP $ra",
+      "  RET",
+      "}");
+
+  // Fills 4096 words with i * i, copies them and sums the copy modulo 1000, with the immediate
+  // multiply, divide and subtract sequences the decoder fuses
+  private static final String MEMORY = String.join("\n",
+      "main {",
+      "  LUI 2 $s0",
+      "  LI 4096 $t0",
+      "  JAL fill",
+      "  LUI 2 $s0",
+      "  LUI 4 $s1",
+      "  LI 4096 $t0",
+      "  JAL copy",
+      "  LUI 4 $s1",
+      "  LI 4096 $t0",
+      "  LI 0 $v0",
+      "  JAL sum",
+      "  SBI $v0 7 $a0",
+      "  SYS OS_EXIT",
+      "}",
+      "fill {",
+      "  MUL $t0 $t0",
+      "  SVR $lo $s0",
+      "  ADI $s0 4 $s0",
+      "  ADS $t0 -1 $t0",
+      "  JNZ $t0 fill",
+      "  RET",
+      "}",
+      "copy {",
+      "  LR $s0 $t1",
+      "  SVR $t1 $s1",
+      "  ADI $s0 4 $s0",
+      "  ADI $s1 4 $s1",
+      "  ADS $t0 -1 $t0",
+      "  JNZ $t0 copy",
+      "  RET",
+      "}",
+      "sum {",
+      "  LR $s1 $t1",
+      "  MLI $t1 3",
+      "  ADD $v0 $lo $v0",
+      "  DVI $v0 1000",
+      "  MV $hi $v0",
+      "  SUB $v0 $t0 $t2",
+      "  ADI $s1 4 $s1",
+      "  ADS $t0 -1 $t0",
+      "  JNZ $t0 sum",
+      "  RET",
+      "}");
+
+  // 3000 'A's stored straight to the output device, then a newline through the PRINT syscall.
+  // Words are big-endian, so the character goes in the top byte
+  private static final String OUTPUT = String.join("\n",
+      "main {",
+      "  LUI 15 $s0",
+      "  ADI $s0 64262 $s0",
+      "  LUI 16640 $t1",
+      "  LI 3000 $t0",
+      "  JAL storm",
+      "  LI 10 $a0",
+      "  SYS OS_PRINT",
+      "  LI 0 $a0",
+      "  SYS OS_EXIT",
+      "}",
+      "storm {",
+      "  SVR $t1 $s0",
+      "  ADS $t0 -1 $t0",
+      "  JNZ $t0 storm",
+      "  RET",
+      "}");
+
+  // Counts 3000 iterations, and halfway through overwrites the loop's own increment with the one
+  // in alt, which adds 2 instead of 1, dropping whatever was decoded or compiled from it
+  static final String SELF_MODIFYING = String.join("\n",
+      "main {",
+      "  LI 3000 $s0",
+      "  LI 1500 $s1",
+      "  JAL loop",
+      "  JR $0",
+      "}",
+      "loop {",
+      "  MPC $t1",
+      "  ADI $t3 1 $t3",
+      "  ADS $s0 -1 $s0",
+      "  CMP $s0 $s1 $t5",
+      "  BIZ $t5 6",
+      "  PSH $ra",
+      "  JAL alt",
+      "  POP $ra",
+      "  LR $t2 $t4",
+      "  SVR $t4 $t1",
+      "  JNZ $s0 loop",
+      "  RET",
+      "}",
+      "alt {",
+      "  MPC $t2",
+      "  ADI $t3 2 $t3",
+      "  RET",
+      "}");
+
+  // Walks a load down from 0x8000 until it leaves memory, long after the loop has been compiled
+  private static final String FAULT = String.join("\n",
+      "main {",
+      "  LI 32768 $t1",
+      "  JT walk",
+      "}",
+      "walk {",
+      "  SBI $t1 4 $t1",
+      "  LR $t1 $t2",
+      "  JT walk",
+      "}");
+
+  @TempDir
+  Path dir;
+
+  @ParameterizedTest
+  @ValueSource(strings = {"fib", "memory", "output", "self-modifying", "fibonacci.s"})
+  void tiersAgree(String program) throws IOException {
+    File executable = assemble(program);
+    Result expected = run(executable, Tier.INTERPRETER);
+    for (Tier tier : new Tier[] {Tier.FUSED, Tier.COMPILED, Tier.COUNTERS}) {
+      Result actual = run(executable, tier);
+      assertArrayEquals(expected.registers, actual.registers, tier + " registers");
+      assertEquals(expected.programCounter, actual.programCounter, tier + " program counter");
+      assertArrayEquals(expected.output, actual.output, tier + " output");
+      assertEquals(expected.exitCode, actual.exitCode, tier + " exit code");
+    }
+  }
+
+  @Test
+  void faultsAgree() throws IOException {
+    File executable = assemble("fault");
+    String expected = null;
+    Result expectedState = null;
+    for (Tier tier : Tier.values()) {
+      SALMachine machine = machine(tier, new ByteArrayOutputStream());
+      machine.load(ProgramLoader.loadProgram(executable));
+      MachineException fault = assertThrows(MachineException.class, machine::run);
+      Result state = new Result(machine, new byte[0]);
+      if (expected == null) {
+        expected = fault.getMessage();
+        expectedState = state;
+        assertTrue(expected.contains("Memory access out of bounds"), expected);
+      } else {
+        assertEquals(expected, fault.getMessage(), tier + " fault");
+        assertArrayEquals(expectedState.registers, state.registers, tier + " registers");
+        assertEquals(expectedState.programCounter, state.programCounter,
+            tier + " program counter");
+      }
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"fib", "output", "self-modifying", "fibonacci.s", "example.s"})
+  void programsProduceKnownResults(String program) throws IOException {
+    Result result = run(assemble(program), Tier.COMPILED);
+    switch (program) {
+      case "fib":
+        assertEquals("4852", new String(result.output));
+        assertEquals(2584 & 127, result.exitCode);
+        break;
+      case "output":
+        assertEquals("A".repeat(3000) + "\n", new String(result.output));
+        break;
+      case "self-modifying":
+        // 1500 iterations before the patch, 1500 after it and the one run of alt itself
+        assertEquals(1500 + 2 * 1500 + 2, result.registers[12]);
+        break;
+      case "example.s":
+        // Exits with the address of its string, the first thing in the data
+        assertEquals(MemoryStructure.DATA_BEGIN, result.exitCode);
+        break;
+      default:
+        assertEquals("63", new String(result.output));
+        assertEquals(0, result.exitCode);
+    }
+  }
+
+  private File assemble(String program) throws IOException {
+    String source;
+    switch (program) {
+      case "fib":
+        source = FIB;
+        break;
+      case "memory":
+        source = MEMORY;
+        break;
+      case "output":
+        source = OUTPUT;
+        break;
+      case "self-modifying":
+        source = SELF_MODIFYING;
+        break;
+      case "fault":
+        source = FAULT;
+        break;
+      default:
+        source = Files.readString(Path.of("data", program));
+    }
+
+    Assembler assembler = new Assembler(new StringReader(source), false);
+    assembler.assemble();
+    File executable = dir.resolve(program + ".o").toFile();
+    assembler.writeToFile(executable);
+    return executable;
+  }
+
+  static Result run(File executable, Tier tier) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    SALMachine machine = machine(tier, output);
+    machine.load(ProgramLoader.loadProgram(executable));
+    machine.run();
+
+    assertTrue(machine.isHalted());
+    if (tier == Tier.COUNTERS) {
+      assertTrue(machine.getCounters().getInstructionsRetired() > 0);
+    }
+    return new Result(machine, output.toByteArray());
+  }
+
+  // A machine on the given tier with host syscalls, writing its output to output
+  private static SALMachine machine(Tier tier, ByteArrayOutputStream output) {
+    SALMachine machine = new SALMachine(GuestMemory.heap(MemoryStructure.MEMORY_SIZE), List.of(
+        new STDOut(Channels.newChannel(output), STDOut.DEFAULT_BUFFER_SIZE, false, 0),
+        new STDIn(Channels.newChannel(InputStream.nullInputStream()),
+            STDIn.DEFAULT_BUFFER_SIZE)));
+    switch (tier) {
+      case INTERPRETER:
+        machine.disableFusion();
+        break;
+      case COMPILED:
+        machine.enableCompilation();
+        break;
+      case COUNTERS:
+        machine.enableCounters();
+        break;
+      default:
+    }
+    machine.enableHostSyscalls();
+    return machine;
+  }
+
+  static final class Result {
+    final int[] registers = new int[32];
+    final int programCounter;
+    final byte[] output;
+    final int exitCode;
+
+    Result(SALMachine machine, byte[] output) {
+      for (int i = 0; i < registers.length; i++) {
+        registers[i] = machine.getRegister(i);
+      }
+      this.programCounter = machine.getProgramCounter();
+      this.output = output;
+      this.exitCode = machine.getExitCode();
+    }
+  }
+}
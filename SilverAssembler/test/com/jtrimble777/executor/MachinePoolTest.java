@@ -0,0 +1,78 @@
+package com.jtrimble777.executor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.jtrimble777.assembler.Assembler;
+import com.jtrimble777.common.MemoryStructure;
+import com.jtrimble777.executor.memory.GuestMemory;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+Checks that pooled machines run to completion and that the pool reports the final stats of the
+machines that finished, keeping only the most recent ones.
+ */
+@Timeout(30)
+class MachinePoolTest {
+  // Counts down from 1000 and returns to address 0, which halts
+  private static final String COUNTDOWN = String.join("\n",
+      "main {",
+      "  LI 1000 $t0",
+      "  JAL loop",
+      "  JR $0",
+      "}",
+      "loop {",
+      "  ADS $t0 -1 $t0",
+      "  JNZ $t0 loop",
+      "  RET",
+      "}");
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void finishedMachinesAreReported() throws IOException {
+    File executable = executable();
+    try (MachinePool pool = new MachinePool(2, 100)) {
+      int machines = MachinePool.FINISHED_HISTORY + 3;
+      CompletableFuture<?>[] results = new CompletableFuture<?>[machines];
+      for (int m = 0; m < machines; m++) {
+        SALMachine machine = new SALMachine(GuestMemory.heap(MemoryStructure.MEMORY_SIZE));
+        machine.load(ProgramLoader.loadProgram(executable));
+        results[m] = pool.submit("machine" + m, machine);
+      }
+      CompletableFuture.allOf(results).join();
+
+      assertEquals(machines, pool.getFinished());
+      List<MachinePool.MachineStats> stats = pool.stats();
+      assertEquals(MachinePool.FINISHED_HISTORY, stats.size());
+      long instructions = stats.get(0).instructions;
+      assertTrue(instructions > 2000, "instructions " + instructions);
+      for (MachinePool.MachineStats machine : stats) {
+        assertTrue(machine.halted, machine.name);
+        assertEquals(instructions, machine.instructions, machine.name);
+      }
+
+      String report = pool.report();
+      assertTrue(report.contains("finished"), report);
+      assertTrue(report.contains("TOTAL " + machines + " machines (0 running) "
+          + instructions * machines + " instr"), report);
+    }
+  }
+
+  private File executable() throws IOException {
+    Assembler assembler = new Assembler(new StringReader(COUNTDOWN), false);
+    assembler.assemble();
+    File executable = dir.resolve("countdown.o").toFile();
+    assembler.writeToFile(executable);
+    return executable;
+  }
+}
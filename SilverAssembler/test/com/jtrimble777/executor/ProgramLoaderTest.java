@@ -0,0 +1,88 @@
+package com.jtrimble777.executor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.jtrimble777.assembler.ExecutableGenerator;
+import com.jtrimble777.common.MemoryStructure;
+import com.jtrimble777.executor.ProgramLoader.LoadedProgram;
+import com.jtrimble777.executor.ProgramLoader.Segment;
+import com.jtrimble777.executor.memory.GuestMemory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+Checks that executables written by ExecutableGenerator load back with their segments at the right
+addresses, into guest memory too, and that truncated files are rejected.
+ */
+class ProgramLoaderTest {
+  private static final int[] TEXT = {0x12345678, 0x9ABCDEF0, 0, -1, 0x40000001};
+  private static final byte[] DATA = {1, 2, 3, 4, 5, 6, 7};
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void textAndDataRoundTrip() throws IOException {
+    File file = write("both.o", TEXT, DATA);
+    LoadedProgram program = ProgramLoader.loadProgram(file);
+    assertEquals(0, program.entryPoint);
+    assertEquals(2, program.segments.size());
+
+    Segment data = program.segments.get(0);
+    assertEquals(MemoryStructure.DATA_BEGIN, data.address);
+    assertEquals(ByteBuffer.wrap(DATA), data.bytes);
+    Segment text = program.segments.get(1);
+    assertEquals(MemoryStructure.PROGRAM_TEXT_BEGIN, text.address);
+    assertEquals(TEXT.length * 4, text.bytes.remaining());
+    for (int i = 0; i < TEXT.length; i++) {
+      assertEquals(TEXT[i], text.bytes.getInt(text.bytes.position() + i * 4));
+    }
+
+    // Loading copies the segments into guest memory without consuming them
+    SALMachine machine = new SALMachine(GuestMemory.heap(MemoryStructure.MEMORY_SIZE));
+    machine.load(program);
+    GuestMemory memory = machine.getMemory();
+    for (int i = 0; i < DATA.length; i++) {
+      assertEquals(DATA[i], memory.loadByte(MemoryStructure.DATA_BEGIN + i));
+    }
+    for (int i = 0; i < TEXT.length; i++) {
+      assertEquals(TEXT[i], memory.loadWord(MemoryStructure.PROGRAM_TEXT_BEGIN + i * 4));
+    }
+    assertEquals(DATA.length, data.bytes.remaining());
+  }
+
+  @Test
+  void textOnlyRoundTrip() throws IOException {
+    LoadedProgram program = ProgramLoader.loadProgram(write("text.o", TEXT, new byte[0]));
+    assertEquals(1, program.segments.size());
+    Segment text = program.segments.get(0);
+    assertEquals(MemoryStructure.PROGRAM_TEXT_BEGIN, text.address);
+    assertEquals(TEXT.length * 4, text.bytes.remaining());
+    assertEquals(TEXT[TEXT.length - 1], text.bytes.getInt(text.bytes.position() + 16));
+  }
+
+  @Test
+  void truncatedFilesAreRejected() throws IOException {
+    byte[] whole = Files.readAllBytes(write("whole.o", TEXT, DATA).toPath());
+    // Inside the main header, inside the program header, and inside the text segment
+    for (int length : new int[] {0, 6, 20, whole.length - 1}) {
+      File file = dir.resolve("cut" + length + ".o").toFile();
+      Files.write(file.toPath(), Arrays.copyOf(whole, length));
+      assertThrows(ProgramLoadingException.class, () -> ProgramLoader.loadProgram(file),
+          "length " + length);
+    }
+  }
+
+  private File write(String name, int[] text, byte[] data) throws IOException {
+    File file = dir.resolve(name).toFile();
+    ExecutableGenerator.writeExecutable(file, text, data, false);
+    return file;
+  }
+}
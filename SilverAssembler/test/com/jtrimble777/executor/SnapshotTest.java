@@ -0,0 +1,138 @@
+package com.jtrimble777.executor;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.jtrimble777.assembler.Assembler;
+import com.jtrimble777.common.MemoryStructure;
+import com.jtrimble777.executor.iomachines.IOMachine;
+import com.jtrimble777.executor.iomachines.STDIn;
+import com.jtrimble777.executor.iomachines.STDOut;
+import com.jtrimble777.executor.memory.GuestMemory;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/*
+Checks that a snapshot and the machines forked from it share memory and decoded text
+copy-on-write without seeing each other's stores, with and without the block compiler.
+ */
+@Timeout(30)
+class SnapshotTest {
+  // Writes its counter to 0x20000 every iteration and patches its own text halfway, see
+  // ExecutionTiersTest.SELF_MODIFYING; exits with the final count
+  private static final String PROGRAM = ExecutionTiersTest.SELF_MODIFYING
+      .replace("  JR $0", "  MV $t3 $a0\n  SYS OS_EXIT")
+      .replace("  ADS $s0 -1 $s0", "  ADS $s0 -1 $s0\n  LUI 2 $t6\n  SVR $t3 $t6");
+  private static final int COUNTER = 0x20000;
+  private static final int FINAL_COUNT = 1500 + 2 * 1500 + 2;
+
+  @TempDir
+  Path dir;
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void forksAreIsolated(boolean compile) throws IOException {
+    SALMachine source = machine(compile);
+    source.load(ProgramLoader.loadProgram(executable()));
+    // Far enough for the loop to be compiled, but before the text is patched
+    source.run(12_000);
+    assertFalse(source.isHalted());
+    int count = source.getMemory().loadWord(COUNTER);
+    assertTrue(count > BlockCompiler.HOT_THRESHOLD && count < 1500, "count " + count);
+    int[] registers = registers(source);
+    MachineSnapshot snapshot = source.snapshot();
+
+    SALMachine first = snapshot.fork(devices());
+    first.run();
+    assertTrue(first.isHalted());
+    assertEquals(FINAL_COUNT, first.getExitCode());
+    assertEquals(FINAL_COUNT, first.getMemory().loadWord(COUNTER));
+
+    // Neither the snapshot nor its source saw the stores or the text patch of the first fork
+    assertEquals(count, source.getMemory().loadWord(COUNTER));
+    assertEquals(registers[12], source.getRegister(12));
+    SALMachine second = snapshot.fork(devices());
+    assertEquals(count, second.getMemory().loadWord(COUNTER));
+    for (int i = 0; i < registers.length; i++) {
+      assertEquals(registers[i], second.getRegister(i), "register " + i);
+    }
+
+    // Running the source on does not reach into the second fork either
+    source.run();
+    assertEquals(FINAL_COUNT, source.getExitCode());
+    assertEquals(count, second.getMemory().loadWord(COUNTER));
+
+    second.run();
+    assertEquals(FINAL_COUNT, second.getExitCode());
+    assertEquals(FINAL_COUNT, second.getMemory().loadWord(COUNTER));
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void restoreResetsExitState(boolean compile) throws IOException {
+    SALMachine machine = machine(compile);
+    machine.load(ProgramLoader.loadProgram(executable()));
+    machine.run(12_000);
+    MachineSnapshot snapshot = machine.snapshot();
+    int count = machine.getMemory().loadWord(COUNTER);
+
+    machine.run();
+    assertTrue(machine.isHalted());
+    assertEquals(FINAL_COUNT, machine.getExitCode());
+
+    machine.restore(snapshot);
+    assertFalse(machine.isHalted());
+    assertEquals(0, machine.getExitCode());
+    assertEquals(count, machine.getMemory().loadWord(COUNTER));
+    assertNotEquals(FINAL_COUNT, machine.getRegister(12));
+
+    machine.run();
+    assertEquals(FINAL_COUNT, machine.getExitCode());
+  }
+
+  private File executable() throws IOException {
+    Assembler assembler = new Assembler(new StringReader(PROGRAM), false);
+    assembler.assemble();
+    File executable = dir.resolve("program.o").toFile();
+    assembler.writeToFile(executable);
+    return executable;
+  }
+
+  private static SALMachine machine(boolean compile) {
+    SALMachine machine = new SALMachine(GuestMemory.paged(MemoryStructure.MEMORY_SIZE),
+        devices());
+    if (compile) {
+      machine.enableCompilation();
+    }
+    machine.enableHostSyscalls();
+    return machine;
+  }
+
+  private static List<IOMachine> devices() {
+    return List.of(
+        new STDOut(Channels.newChannel(OutputStream.nullOutputStream()),
+            STDOut.DEFAULT_BUFFER_SIZE, false, 0),
+        new STDIn(Channels.newChannel(InputStream.nullInputStream()),
+            STDIn.DEFAULT_BUFFER_SIZE));
+  }
+
+  private static int[] registers(SALMachine machine) {
+    int[] registers = new int[32];
+    for (int i = 0; i < registers.length; i++) {
+      registers[i] = machine.getRegister(i);
+    }
+    return registers;
+  }
+}
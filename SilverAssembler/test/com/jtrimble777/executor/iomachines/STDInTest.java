@@ -0,0 +1,130 @@
+package com.jtrimble777.executor.iomachines;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.jtrimble777.common.MemoryStructure;
+import com.jtrimble777.executor.memory.GuestMemory;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/*
+Checks that the input device reads its channel in bulk through the ring buffer, reports when no
+input is available yet and when it has ended, and runs the beforeRead hook before each read.
+ */
+class STDInTest {
+
+  @Test
+  void readsInBulkAcrossTheRing() {
+    String text = "the quick brown fox jumps over the lazy dog";
+    ScriptedChannel channel = new ScriptedChannel(text);
+    STDIn in = new STDIn(channel, 5);
+
+    StringBuilder read = new StringBuilder();
+    for (int i = 0; i < text.length(); i++) {
+      int next = in.read();
+      assertEquals(1, next >> 8, "status at " + i);
+      read.append((char) (next & 0xFF));
+    }
+    assertEquals(text, read.toString());
+    assertEquals(0xFF00, in.read());
+    // The ring holds 8 bytes and is filled up to its end; 43 bytes leave the last read starting
+    // 3 bytes in
+    assertEquals(List.of(8, 8, 8, 8, 8, 8, 5), channel.requested);
+    assertEquals(0xFF00, in.read());
+  }
+
+  @Test
+  void reportsInputThatIsNotAvailableYet() {
+    ScriptedChannel channel = new ScriptedChannel("ab", "", "", "c");
+    STDIn in = new STDIn(channel, 16);
+    assertEquals(0x100 | 'a', in.read());
+    assertEquals(0x100 | 'b', in.read());
+    assertEquals(0, in.read());
+    assertEquals(0, in.read());
+    assertEquals(0x100 | 'c', in.read());
+    assertEquals(0xFF00, in.read());
+  }
+
+  @Test
+  void loadsSetTheMappedBytes() {
+    GuestMemory memory = GuestMemory.heap(MemoryStructure.MEMORY_SIZE);
+    STDIn in = new STDIn(new ScriptedChannel("x", ""), 16);
+    int status = in.getMemoryMapping();
+    assertEquals(MemoryStructure.MMIO + 1, status);
+
+    assertFalse(in.beforeLoad(memory));
+    assertEquals(1, memory.loadByte(status));
+    assertEquals('x', memory.loadByte(status + 1));
+    // Nothing yet: the machine should give up its slice
+    assertTrue(in.beforeLoad(memory));
+    assertEquals(0, memory.loadByte(status));
+    assertFalse(in.beforeLoad(memory));
+    assertEquals((byte) 0xFF, memory.loadByte(status));
+  }
+
+  @Test
+  void hookRunsBeforeEachChannelRead() {
+    List<String> events = new ArrayList<>();
+    ScriptedChannel channel = new ScriptedChannel("abc", "d") {
+      @Override
+      public int read(ByteBuffer dst) {
+        events.add("read");
+        return super.read(dst);
+      }
+    };
+    STDIn in = new STDIn(channel, 16);
+    in.setBeforeRead(() -> events.add("hook"));
+
+    // Buffered bytes are consumed without touching the channel
+    for (int i = 0; i < 4; i++) {
+      in.read();
+    }
+    in.read();
+    assertEquals(List.of("hook", "read", "hook", "read", "hook", "read"), events);
+  }
+
+  // Answers each read with the next chunk, at most as much as fits; an empty chunk reads nothing
+  // as a non-blocking channel without input would, and the end of the chunks ends the input
+  private static class ScriptedChannel implements ReadableByteChannel {
+    final List<Integer> requested = new ArrayList<>();
+    private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+
+    ScriptedChannel(String... chunks) {
+      for (String chunk : chunks) {
+        this.chunks.add(ByteBuffer.wrap(chunk.getBytes(StandardCharsets.US_ASCII)));
+      }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+      requested.add(dst.remaining());
+      ByteBuffer chunk = chunks.peekFirst();
+      if (chunk == null) {
+        return -1;
+      }
+      int length = Math.min(chunk.remaining(), dst.remaining());
+      dst.put(chunk.slice().limit(length));
+      chunk.position(chunk.position() + length);
+      if (!chunk.hasRemaining()) {
+        chunks.removeFirst();
+      }
+      return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
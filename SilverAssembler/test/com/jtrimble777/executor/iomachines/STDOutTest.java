@@ -0,0 +1,104 @@
+package com.jtrimble777.executor.iomachines;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import com.jtrimble777.assembler.Assembler;
+import com.jtrimble777.common.MemoryStructure;
+import com.jtrimble777.executor.ProgramLoader;
+import com.jtrimble777.executor.SALMachine;
+import com.jtrimble777.executor.memory.GuestMemory;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+Checks when the output device writes its buffer out: when it fills, on a newline if asked to,
+once the flush interval has passed, and on an explicit flush.
+ */
+@Timeout(30)
+class STDOutTest {
+  // Stores 'A' to the output byte, then spins without writing again
+  private static final String SPIN = String.join("\n",
+      "main {",
+      "  LUI 15 $s0",
+      "  ADI $s0 64262 $s0",
+      "  LUI 16640 $t1",
+      "  SVR $t1 $s0",
+      "  JT spin",
+      "}",
+      "spin {",
+      "  JT spin",
+      "}");
+
+  private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void flushesWhenFull() {
+    STDOut out = new STDOut(Channels.newChannel(output), 4, false, 0);
+    write(out, "abc");
+    assertEquals("", output.toString());
+    write(out, "de");
+    assertEquals("abcd", output.toString());
+    out.flush();
+    assertEquals("abcde", output.toString());
+  }
+
+  @Test
+  void flushesOnNewline() {
+    STDOut buffered = new STDOut(Channels.newChannel(output), 64, false, 0);
+    write(buffered, "ab\n");
+    assertEquals("", output.toString());
+
+    STDOut lines = new STDOut(Channels.newChannel(output), 64, true, 0);
+    write(lines, "cd\nef");
+    assertEquals("cd\n", output.toString());
+  }
+
+  @Test
+  void tickFlushesAfterInterval() throws InterruptedException {
+    STDOut out = new STDOut(Channels.newChannel(output), 64, false, 50);
+    write(out, "a");
+    out.tick();
+    assertEquals("", output.toString());
+
+    Thread.sleep(60);
+    out.tick();
+    assertEquals("a", output.toString());
+  }
+
+  @Test
+  void machineFlushesBetweenSlices() throws IOException, InterruptedException {
+    Assembler assembler = new Assembler(new StringReader(SPIN), false);
+    assembler.assemble();
+    File executable = dir.resolve("spin.o").toFile();
+    assembler.writeToFile(executable);
+
+    SALMachine machine = new SALMachine(GuestMemory.heap(MemoryStructure.MEMORY_SIZE),
+        List.of(new STDOut(Channels.newChannel(output), 64, false, 20)));
+    machine.load(ProgramLoader.loadProgram(executable));
+    // The byte is written long before the interval is up and nothing is written after it
+    while (output.size() == 0) {
+      machine.run(100_000);
+      Thread.sleep(1);
+    }
+    assertEquals("A", output.toString());
+    assertFalse(machine.isHalted());
+  }
+
+  private static void write(STDOut out, String text) {
+    for (byte b : text.getBytes()) {
+      out.write(b);
+    }
+  }
+}
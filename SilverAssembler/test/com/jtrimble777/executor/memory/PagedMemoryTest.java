@@ -0,0 +1,119 @@
+package com.jtrimble777.executor.memory;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+/*
+Checks paged memory against heap memory for accesses that cross a page, and that snapshots share
+pages copy-on-write without seeing each other's stores.
+ */
+class PagedMemoryTest {
+  private static final int SIZE = 16 * PagedMemory.PAGE_SIZE;
+
+  @Test
+  void wordsStraddlingPagesMatchHeapMemory() {
+    PagedMemory paged = new PagedMemory(SIZE);
+    GuestMemory heap = GuestMemory.heap(SIZE);
+    int boundary = 3 * PagedMemory.PAGE_SIZE;
+    for (int address = boundary - 4; address <= boundary; address++) {
+      int value = 0x01020304 * (address - boundary + 5);
+      paged.storeWord(address, value);
+      heap.storeWord(address, value);
+      assertEquals(value, paged.loadWord(address), "address " + address);
+    }
+    for (int address = boundary - 8; address < boundary + 8; address++) {
+      assertEquals(heap.loadByte(address), paged.loadByte(address), "address " + address);
+      assertEquals(heap.loadWord(address), paged.loadWord(address), "address " + address);
+    }
+    assertEquals(2, paged.getAllocatedPages());
+
+    // A write spanning several pages lands in each of them
+    byte[] block = new byte[2 * PagedMemory.PAGE_SIZE + 100];
+    for (int i = 0; i < block.length; i++) {
+      block[i] = (byte) (i * 7);
+    }
+    int start = 6 * PagedMemory.PAGE_SIZE - 50;
+    paged.write(start, block);
+    for (int i = 0; i < block.length; i++) {
+      assertEquals(block[i], paged.loadByte(start + i), "offset " + i);
+    }
+  }
+
+  @Test
+  void unwrittenMemoryReadsAsZeros() {
+    PagedMemory paged = new PagedMemory(SIZE);
+    assertEquals(0, paged.loadWord(PagedMemory.PAGE_SIZE - 2));
+    assertEquals(0, paged.loadByte(SIZE - 1));
+    assertEquals(0, paged.getAllocatedPages());
+  }
+
+  @Test
+  void outOfRangeAccessesFailWithoutStoring() {
+    PagedMemory paged = new PagedMemory(SIZE);
+    assertThrows(IndexOutOfBoundsException.class, () -> paged.loadByte(SIZE));
+    assertThrows(IndexOutOfBoundsException.class, () -> paged.loadWord(-1));
+    // The last byte is past the end, so none of the word is stored
+    assertThrows(IndexOutOfBoundsException.class, () -> paged.storeWord(SIZE - 3, -1));
+    assertEquals(0, paged.loadByte(SIZE - 3));
+    assertThrows(IndexOutOfBoundsException.class, () -> paged.write(SIZE - 2, new byte[4]));
+    assertThrows(IllegalArgumentException.class, () -> new PagedMemory(SIZE + 1));
+  }
+
+  @Test
+  void sparseMemoryCoversTheWholeAddressSpace() {
+    PagedMemory paged = new PagedMemory();
+    assertEquals(PagedMemory.ADDRESS_SPACE, paged.size());
+    paged.storeWord(0xFFFFFFFC, 0xCAFEBABE);
+    paged.storeWord(0x80000000 - 2, 0x11223344);
+    assertEquals(0xCAFEBABE, paged.loadWord(0xFFFFFFFC));
+    assertEquals(0x11223344, paged.loadWord(0x80000000 - 2));
+    assertEquals(0x33, paged.loadByte(0x80000000));
+    assertEquals(3, paged.getAllocatedPages());
+    // A word at the top does not wrap around to address 0
+    assertThrows(IndexOutOfBoundsException.class, () -> paged.storeWord(0xFFFFFFFE, 0));
+    assertThrows(IndexOutOfBoundsException.class, () -> paged.loadWord(0xFFFFFFFF));
+    assertEquals(0, paged.loadByte(0));
+  }
+
+  @Test
+  void snapshotsAreCopiedOnWrite() {
+    PagedMemory source = new PagedMemory(SIZE);
+    int page = PagedMemory.PAGE_SIZE;
+    source.storeWord(0, 1);
+    source.storeWord(page, 2);
+    source.storeWord(2 * page - 2, 0x0A0B0C0D);
+
+    PagedMemory snapshot = source.snapshot();
+    assertEquals(0, snapshot.getCopiedPages());
+    assertEquals(0x0A0B0C0D, snapshot.loadWord(2 * page - 2));
+
+    // Stores on either side stay on that side
+    source.storeWord(0, 10);
+    snapshot.storeWord(page, 20);
+    snapshot.storeWord(2 * page - 2, 0x01020304);
+    assertEquals(10, source.loadWord(0));
+    assertEquals(1, snapshot.loadWord(0));
+    assertEquals(2, source.loadWord(page));
+    assertEquals(20, snapshot.loadWord(page));
+    assertEquals(0x0A0B0C0D, source.loadWord(2 * page - 2));
+    assertEquals(0x01020304, snapshot.loadWord(2 * page - 2));
+
+    // Each side copies a shared page once, and pages that were never allocated are not copied
+    assertEquals(1, source.getCopiedPages());
+    assertEquals(2, snapshot.getCopiedPages());
+    snapshot.storeWord(page + 8, 3);
+    snapshot.storeWord(5 * page, 4);
+    assertEquals(2, snapshot.getCopiedPages());
+    assertEquals(1, snapshot.getAllocatedPages());
+    assertEquals(0, source.loadWord(5 * page));
+
+    // A snapshot of a snapshot shares with both
+    PagedMemory second = snapshot.snapshot();
+    second.write(0, new byte[] {9, 9, 9, 9});
+    assertArrayEquals(new int[] {1, 0x09090909, 10},
+        new int[] {snapshot.loadWord(0), second.loadWord(0), source.loadWord(0)});
+  }
+}
@@ -0,0 +1,40 @@
+package com.jtrimble777.bench;
+
+import com.jtrimble777.assembler.Assembler;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Full assembly, from reading the source to the encoded program, of a synthetic source
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AssemblerBenchmark {
+
+  @Param({"1000", "10000", "100000"})
+  public int lines;
+
+  private String source;
+
+  @Setup
+  public void setup() {
+    source = Kernels.synthetic(lines);
+  }
+
+  @Benchmark
+  public Assembler assemble() {
+    return Kernels.assemble(source);
+  }
+}
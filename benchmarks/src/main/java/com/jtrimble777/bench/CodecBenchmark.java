@@ -0,0 +1,103 @@
+package com.jtrimble777.bench;
+
+import com.jtrimble777.common.InstructionSet;
+import com.jtrimble777.common.InstructionType;
+import com.jtrimble777.common.InstructionType.InstructionComponent;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Per instruction cost of the InstructionType component codecs and of InstructionSet.encode
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+  private static final int COUNT = 1024;
+
+  private int[] words;
+  private InstructionType[] types;
+  private Map<InstructionComponent, Integer>[] components;
+  private int[] operands;
+  private int[] out;
+
+  @Setup
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public void setup() {
+    Random random = new Random(42);
+    words = new int[COUNT];
+    types = new InstructionType[COUNT];
+    components = new Map[COUNT];
+    for (int i = 0; i < COUNT; i++) {
+      int word;
+      switch (i % 3) {
+        case 0:
+          word = random.nextInt(16) << 8 | random.nextInt(1 << 15) << 13;
+          break;
+        case 1:
+          word = (1 + random.nextInt(5)) << 28 | random.nextInt(1 << 28);
+          break;
+        default:
+          word = (8 + random.nextInt(4)) << 28 | random.nextInt(1 << 28);
+          break;
+      }
+      words[i] = word;
+      types[i] = InstructionType.typeOf(word);
+      components[i] = types[i].decode(word);
+    }
+
+    // Three register/immediate operands for ADI and ADD, in range for both
+    operands = new int[COUNT * 3];
+    for (int i = 0; i < operands.length; i++) {
+      operands[i] = random.nextInt(32);
+    }
+    out = new int[4];
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public void decode(Blackhole bh) {
+    for (int i = 0; i < COUNT; i++) {
+      bh.consume(types[i].decode(words[i]));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public void encode(Blackhole bh) {
+    for (int i = 0; i < COUNT; i++) {
+      bh.consume(types[i].encode(components[i]));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public void encodeInstruction(Blackhole bh) {
+    for (int i = 0; i < COUNT; i++) {
+      InstructionSet instr = (i & 1) == 0 ? InstructionSet.ADI : InstructionSet.ADD;
+      bh.consume(instr.encode(operands, i * 3, 3, out, 0));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public void encodePseudo(Blackhole bh) {
+    for (int i = 0; i < COUNT; i++) {
+      bh.consume(InstructionSet.SBI.encode(operands, i * 3, 3, out, 0));
+    }
+  }
+}
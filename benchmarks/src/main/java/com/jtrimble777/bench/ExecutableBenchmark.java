@@ -0,0 +1,69 @@
+package com.jtrimble777.bench;
+
+import com.jtrimble777.assembler.Assembler;
+import com.jtrimble777.assembler.ExecutableGenerator;
+import com.jtrimble777.executor.ProgramLoader;
+import com.jtrimble777.executor.ProgramLoader.LoadedProgram;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Writing and loading executables of the synthetic sources' size
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExecutableBenchmark {
+
+  @Param({"1000", "10000", "100000"})
+  public int lines;
+
+  private int[] program;
+  private byte[] data;
+  private File written;
+  private File executable;
+
+  @Setup
+  public void setup() throws IOException {
+    Assembler assembler = Kernels.assemble(Kernels.synthetic(lines));
+    List<Integer> words = assembler.getProgram();
+    program = words.stream().mapToInt(Integer::intValue).toArray();
+    data = new byte[4096];
+
+    written = File.createTempFile("bench", ".o");
+    executable = File.createTempFile("bench", ".o");
+    assembler.writeToFile(executable);
+  }
+
+  @TearDown
+  public void tearDown() {
+    written.delete();
+    executable.delete();
+  }
+
+  @Benchmark
+  public File writeExecutable() throws IOException {
+    ExecutableGenerator.writeExecutable(written, program, data, false);
+    return written;
+  }
+
+  @Benchmark
+  public LoadedProgram loadProgram() throws IOException {
+    return ProgramLoader.loadProgram(executable);
+  }
+}
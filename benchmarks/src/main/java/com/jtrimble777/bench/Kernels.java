@@ -0,0 +1,231 @@
+package com.jtrimble777.bench;
+
+import com.jtrimble777.assembler.Assembler;
+import com.jtrimble777.executor.ProgramLoader;
+import com.jtrimble777.executor.ProgramLoader.LoadedProgram;
+import com.jtrimble777.executor.ProgramLoader.Segment;
+import com.jtrimble777.executor.iomachines.IOMachine;
+import com.jtrimble777.executor.iomachines.STDIn;
+import com.jtrimble777.executor.iomachines.STDOut;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+Assembly sources shared by the benchmarks. Everything is generated from fixed inputs and seeds
+so that runs on different commits measure the same work.
+
+Each kernel halts the machine with JR $0.
+ */
+public final class Kernels {
+  private static final WritableByteChannel DISCARD = new WritableByteChannel() {
+    @Override
+    public int write(ByteBuffer src) {
+      int length = src.remaining();
+      src.position(src.limit());
+      return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  };
+
+  // 1M iterations of a decrement and branch
+  public static final String LOOP = String.join("\n",
+      "main {",
+      "  LUI 15 $t0",
+      "  JAL count",
+      "  JR $0",
+      "}",
+      "count {",
+      "  ADS $t0 -1 $t0",
+      "  JNZ $t0 count",
+      "  RET",
+      "}");
+
+  // Copies 64 KiB, one word at a time, from 0x20000 to 0x40000
+  public static final String MEMCPY = String.join("\n",
+      "main {",
+      "  LUI 2 $s0",
+      "  LUI 4 $s1",
+      "  ADI $0 16384 $t0",
+      "  JAL copy",
+      "  JR $0",
+      "}",
+      "copy {",
+      "  LR $s0 $t1",
+      "  SVR $t1 $s1",
+      "  ADI $s0 4 $s0",
+      "  ADI $s1 4 $s1",
+      "  ADS $t0 -1 $t0",
+      "  JNZ $t0 copy",
+      "  RET",
+      "}");
+
+  // Naive recursive fib(24), exercising calls, the stack and the fused push/pop sequences
+  public static final String FIB = String.join("\n",
+      "main {",
+      "  LUI 15 $sp",
+      "  LI 24 $a0",
+      "  JAL fib",
+      "  JR $0",
+      "}",
+      "fib {",
+      "  LI 2 $t0",
+      "  LT $a0 $t0 $t0",
+      "  JIZ $t0 fibrec",
+      "  MV $a0 $v0",
+      "  RET",
+      "}",
+      "fibrec {",
+      "  PSH $ra",
+      "  PSH $a0",
+      "  ADS $a0 -1 $a0",
+      "  JAL fib",
+      "  POP $a0",
+      "  PSH $v0",
+      "  ADS $a0 -2 $a0",
+      "  JAL fib",
+      "  POP $t0",
+      "  ADD $v0 $t0 $v0",
+      "  POP $ra",
+      "  RET",
+      "}");
+
+  // 256K stores of 'A' to the output device, the path every console syscall ends up on. Words are
+  // big-endian, so the character goes in the top byte to land on the mapped output byte
+  public static final String MMIO_STORM = String.join("\n",
+      "main {",
+      "  LUI 15 $s0",
+      "  ADI $s0 64262 $s0",
+      "  LUI 16640 $t1",
+      "  LUI 4 $t0",
+      "  JAL storm",
+      "  JR $0",
+      "}",
+      "storm {",
+      "  SVR $t1 $s0",
+      "  ADS $t0 -1 $t0",
+      "  JNZ $t0 storm",
+      "  RET",
+      "}");
+
+  // 256K PRINT syscalls of 'A', for machines with host syscalls. Load it with trapSyscalls set
+  // to measure the single-word TRAP instead of the SYS expansion through the OS table
+  public static final String SYS_STORM = String.join("\n",
+      "main {",
+      "  LI 65 $a0",
+      "  LUI 4 $t0",
+      "  JT storm",
+      "}",
+      "storm {",
+      "  SYS OS_PRINT",
+      "  ADS $t0 -1 $t0",
+      "  JNZ $t0 storm",
+      "  JR $0",
+      "}");
+
+  private static final String[] BODY = {
+      "  ADI $t0 %d $t1",
+      "  ADD $t1 $t2 $t3",
+      "  LUI %d $a0",
+      "  SBI $a0 %d $a1",
+      "  PSH $ra",
+      "  POP $ra",
+      "  MLI $t4 %d",
+      "  JAL fn%d",
+      "  JIZ $t5 fn%d",
+      "  LT $s0 $s1 $s2",
+  };
+
+  private Kernels() {
+  }
+
+  // A source of roughly the given number of lines, in functions of 51 lines each
+  public static String synthetic(int lines) {
+    Random random = new Random(lines);
+    int functions = Math.max(lines / 51, 1);
+    StringBuilder out = new StringBuilder(lines * 20);
+    out.append("main {\n  JAL fn0\n  JR $0\n}\n");
+
+    for (int f = 0; f < functions; f++) {
+      out.append("fn").append(f).append(" {\n");
+      for (int l = 0; l < 48; l++) {
+        String line = BODY[random.nextInt(BODY.length)];
+        int operand = line.contains("fn") ? random.nextInt(functions) : random.nextInt(1000);
+        out.append(String.format(line, operand)).append('\n');
+      }
+      out.append("  RET\n}\n");
+    }
+    return out.toString();
+  }
+
+  public static Assembler assemble(String source) {
+    return assemble(source, false);
+  }
+
+  // With trapSyscalls set, SYS is lowered to TRAP
+  public static Assembler assemble(String source, boolean trapSyscalls) {
+    try {
+      Assembler assembler = new Assembler(new StringReader(source), false);
+      assembler.setTrapSyscalls(trapSyscalls);
+      assembler.assemble();
+      return assembler;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // Assembles and loads the source the same way the execute command does, through a file
+  public static LoadedProgram load(String source) {
+    return load(source, false);
+  }
+
+  public static LoadedProgram load(String source, boolean trapSyscalls) {
+    try {
+      File executable = File.createTempFile("kernel", ".o");
+      executable.deleteOnExit();
+      assemble(source, trapSyscalls).writeToFile(executable);
+      return copy(ProgramLoader.loadProgram(executable));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // Console devices that discard output and read an empty input
+  public static List<IOMachine> devices() {
+    return devices(DISCARD);
+  }
+
+  // Console devices that write output to the given channel and read an empty input
+  public static List<IOMachine> devices(WritableByteChannel out) {
+    return List.of(new STDOut(out, STDOut.DEFAULT_BUFFER_SIZE, false, 0),
+        new STDIn(Channels.newChannel(InputStream.nullInputStream()), STDIn.DEFAULT_BUFFER_SIZE));
+  }
+
+  // Fresh buffers over the same bytes, so one program can be loaded into any number of machines
+  public static LoadedProgram copy(LoadedProgram program) {
+    List<Segment> segments = new ArrayList<>();
+    for (Segment segment : program.segments) {
+      ByteBuffer bytes = segment.bytes.duplicate();
+      byte[] contents = new byte[bytes.remaining()];
+      bytes.get(contents);
+      segments.add(new Segment(segment.address, ByteBuffer.wrap(contents)));
+    }
+    return new LoadedProgram(segments, program.entryPoint);
+  }
+}
@@ -0,0 +1,83 @@
+package com.jtrimble777.bench;
+
+import com.jtrimble777.assembler.Assembler;
+import com.jtrimble777.assembler.Linker;
+import com.jtrimble777.assembler.ObjectFile;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+Linking the 100k line synthetic source split into that many relocatable objects, with the
+relocations applied serially or on the common pool. Objects are assembled once in setup, so only
+symbol resolution, layout and relocation are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LinkBenchmark {
+  private static final int LINES = 100_000;
+
+  @Param({"1", "16"})
+  public int objects;
+
+  @Param({"serial", "parallel"})
+  public String relocation;
+
+  private List<ObjectFile> parts;
+
+  @Setup
+  public void setup() {
+    // Every segment of the synthetic source ends with a line of its own holding just }
+    String[] segments = Kernels.synthetic(LINES).split("(?<=\n}\n)");
+    parts = new ArrayList<>();
+    int per = (segments.length + objects - 1) / objects;
+    for (int from = 0; from < segments.length; from += per) {
+      StringBuilder source = new StringBuilder();
+      for (int s = from; s < Math.min(from + per, segments.length); s++) {
+        source.append(segments[s]);
+      }
+      parts.add(assemble(source.toString()));
+    }
+  }
+
+  @Benchmark
+  public Linker link() {
+    Linker linker = new Linker(false);
+    linker.setPool(relocation.equals("parallel") ? ForkJoinPool.commonPool() : null);
+    for (int p = 0; p < parts.size(); p++) {
+      linker.add("part" + p, parts.get(p));
+    }
+    linker.link();
+    return linker;
+  }
+
+  private static ObjectFile assemble(String source) {
+    try {
+      Assembler assembler = new Assembler(new StringReader(source), false);
+      assembler.setRelocatable(true);
+      assembler.assemble();
+      return assembler.toObject();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
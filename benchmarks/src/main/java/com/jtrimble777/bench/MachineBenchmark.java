@@ -0,0 +1,158 @@
+package com.jtrimble777.bench;
+
+import com.jtrimble777.common.MemoryStructure;
+import com.jtrimble777.common.Register;
+import com.jtrimble777.executor.ProgramLoader.LoadedProgram;
+import com.jtrimble777.executor.SALMachine;
+import com.jtrimble777.executor.iomachines.IOMachine;
+import com.jtrimble777.executor.memory.GuestMemory;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+Runs each kernel to completion on a fresh machine, with and without the block compiler, on flat
+and on sparse memory. The machine is created and loaded inside the benchmark, since that is part
+of every real run.
+
+The sys and trap kernels are the syscall storm with SYS through the OS table and lowered to TRAP,
+on machines with host syscalls enabled. Setup runs the kernel once and checks its output and
+final registers, so a kernel that stops doing its work fails instead of reporting a fast time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MachineBenchmark {
+  @Param({"loop", "memcpy", "fib", "mmio", "sys", "trap"})
+  public String kernel;
+
+  @Param({"false", "true"})
+  public boolean compile;
+
+  @Param({"heap", "sparse"})
+  public String memory;
+
+  private LoadedProgram program;
+
+  @Setup
+  public void setup() {
+    switch (kernel) {
+      case "loop":
+        program = Kernels.load(Kernels.LOOP);
+        break;
+      case "memcpy":
+        program = Kernels.load(Kernels.MEMCPY);
+        break;
+      case "fib":
+        program = Kernels.load(Kernels.FIB);
+        break;
+      case "mmio":
+        program = Kernels.load(Kernels.MMIO_STORM);
+        break;
+      case "sys":
+        program = Kernels.load(Kernels.SYS_STORM);
+        break;
+      case "trap":
+        program = Kernels.load(Kernels.SYS_STORM, true);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown kernel " + kernel);
+    }
+    verify();
+  }
+
+  @Benchmark
+  public SALMachine run() {
+    GuestMemory guest = memory.equals("sparse") ? GuestMemory.sparse()
+        : GuestMemory.heap(MemoryStructure.MEMORY_SIZE);
+    SALMachine machine = machine(guest, Kernels.devices());
+    machine.run();
+    return machine;
+  }
+
+  private SALMachine machine(GuestMemory guest, List<IOMachine> devices) {
+    SALMachine machine = new SALMachine(guest, devices);
+    if (compile) {
+      machine.enableCompilation();
+    }
+    if (kernel.equals("sys") || kernel.equals("trap")) {
+      machine.enableHostSyscalls();
+    }
+    machine.load(Kernels.copy(program));
+    return machine;
+  }
+
+  private void verify() {
+    long[] written = new long[1];
+    int[] last = new int[1];
+    WritableByteChannel counter = new WritableByteChannel() {
+      @Override
+      public int write(ByteBuffer src) {
+        int length = src.remaining();
+        while (src.hasRemaining()) {
+          last[0] = src.get();
+          written[0]++;
+        }
+        return length;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return true;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+
+    SALMachine machine = machine(GuestMemory.heap(MemoryStructure.MEMORY_SIZE),
+        Kernels.devices(counter));
+    machine.run();
+
+    boolean storm = kernel.equals("mmio") || kernel.equals("sys") || kernel.equals("trap");
+    long expectedOutput = storm ? 1 << 18 : 0;
+    check(machine.isHalted(), "did not halt");
+    check(machine.getExitCode() == 0, "exited with " + machine.getExitCode());
+    check(written[0] == expectedOutput, "wrote " + written[0] + " bytes, expected "
+        + expectedOutput);
+    switch (kernel) {
+      case "loop":
+        check(machine.getRegister(Register.TEMP0.getIndex()) == 0, "did not count down");
+        break;
+      case "memcpy":
+        check(machine.getRegister(Register.SVD1.getIndex()) == 0x50000, "did not copy 64 KiB");
+        break;
+      case "fib":
+        int result = machine.getRegister(Register.RV0.getIndex());
+        check(result == 46368, "computed fib(24) = " + result);
+        break;
+      case "mmio":
+      case "sys":
+      case "trap":
+        check(last[0] == 'A', "wrote " + last[0] + " instead of 'A'");
+        break;
+    }
+  }
+
+  private void check(boolean condition, String problem) {
+    if (!condition) {
+      throw new IllegalStateException("Kernel " + kernel + " " + problem);
+    }
+  }
+}
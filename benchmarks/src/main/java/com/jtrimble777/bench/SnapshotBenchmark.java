@@ -0,0 +1,64 @@
+package com.jtrimble777.bench;
+
+import com.jtrimble777.common.MemoryStructure;
+import com.jtrimble777.executor.MachineSnapshot;
+import com.jtrimble777.executor.ProgramLoader.LoadedProgram;
+import com.jtrimble777.executor.SALMachine;
+import com.jtrimble777.executor.memory.GuestMemory;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+A short run after an expensive start, done from scratch and forked from a snapshot taken once the
+start is over. The fib kernel stands in for the start: its first WARMUP instructions are treated
+as initialisation and the RUN that follows as the work done per input.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotBenchmark {
+  private static final long WARMUP = 500_000;
+  private static final long RUN = 10_000;
+
+  private LoadedProgram program;
+  private MachineSnapshot snapshot;
+
+  @Setup
+  public void setup() {
+    program = Kernels.load(Kernels.FIB);
+    SALMachine machine = new SALMachine(GuestMemory.paged(MemoryStructure.MEMORY_SIZE),
+        Kernels.devices());
+    machine.load(Kernels.copy(program));
+    machine.run(WARMUP);
+    snapshot = machine.snapshot();
+  }
+
+  @Benchmark
+  public SALMachine fromScratch() {
+    SALMachine machine = new SALMachine(GuestMemory.heap(MemoryStructure.MEMORY_SIZE),
+        Kernels.devices());
+    machine.load(Kernels.copy(program));
+    machine.run(WARMUP);
+    machine.run(RUN);
+    return machine;
+  }
+
+  @Benchmark
+  public SALMachine fromSnapshot() {
+    SALMachine machine = snapshot.fork(Kernels.devices());
+    machine.run(RUN);
+    return machine;
+  }
+}